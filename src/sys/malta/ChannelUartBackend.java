@@ -0,0 +1,81 @@
+package sys.malta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+import sys.util.Logger;
+
+/**
+ * uart backend for a pair of channels, selectable channels are made non
+ * blocking. transmitted bytes are buffered until the channel takes them.
+ */
+public class ChannelUartBackend implements UartBackend {
+	
+	private static final Logger log = new Logger("ChannelUartBackend");
+	
+	private final ReadableByteChannel rx;
+	private final WritableByteChannel tx;
+	/** bytes waiting to be written to tx */
+	private final ByteBuffer out = ByteBuffer.allocate(0x1000);
+	private long dropped;
+	
+	public ChannelUartBackend (final ReadableByteChannel rx, final WritableByteChannel tx) throws IOException {
+		this.rx = rx;
+		this.tx = tx;
+		if (rx instanceof SelectableChannel) {
+			((SelectableChannel) rx).configureBlocking(false);
+		}
+		if (tx instanceof SelectableChannel && tx != rx) {
+			((SelectableChannel) tx).configureBlocking(false);
+		}
+	}
+	
+	/** transmitted bytes dropped because the channel wasn't keeping up */
+	public long getDropped () {
+		return dropped;
+	}
+	
+	@Override
+	public int read (final ByteBuffer buf) throws IOException {
+		flush();
+		return rx.read(buf);
+	}
+	
+	@Override
+	public void write (final ByteBuffer buf) throws IOException {
+		flush();
+		final int n = Math.min(buf.remaining(), out.remaining());
+		if (n < buf.remaining()) {
+			if (dropped == 0) {
+				log.println("tx buffer full, dropping bytes");
+			}
+			dropped += buf.remaining() - n;
+		}
+		final int limit = buf.limit();
+		buf.limit(buf.position() + n);
+		out.put(buf);
+		buf.limit(limit);
+		flush();
+	}
+	
+	private void flush () throws IOException {
+		if (out.position() > 0) {
+			out.flip();
+			tx.write(out);
+			out.compact();
+		}
+	}
+	
+	@Override
+	public void close () throws IOException {
+		try {
+			rx.close();
+		} finally {
+			tx.close();
+		}
+	}
+	
+}
@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.Cpu;
 import sys.mips.Device;
 import sys.util.Logger;
@@ -35,6 +39,22 @@ public class GT extends Device {
 		getCpu().getSymbols().init(GTUtil.class, "GT_", null, baseAddr, 4);
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(configData);
+		out.writeInt(configAddr);
+		out.writeInt(irq);
+		out.writeBoolean(masterByteSwap);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		configData = in.readInt();
+		configAddr = in.readInt();
+		irq = in.readInt();
+		masterByteSwap = in.readBoolean();
+	}
+	
 	@Override
 	public boolean isMapped (final int addr) {
 		final int offset = addr - baseAddr;
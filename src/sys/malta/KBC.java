@@ -1,5 +1,7 @@
 package sys.malta;
 
+import java.io.*;
+
 import sys.mips.*;
 import sys.util.Logger;
 
@@ -64,6 +66,30 @@ public class KBC extends Device {
 		getCpu().getSymbols().init(KBCUtil.class, "M_", null, baseAddr, 1);
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(data);
+		out.writeInt(status);
+		out.writeInt(config);
+		out.writeInt(datacmd);
+		out.writeInt(devcmd);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		data = in.readInt();
+		status = in.readInt();
+		config = in.readInt();
+		datacmd = in.readInt();
+		devcmd = in.readInt();
+	}
+	
+	/** a byte from the keyboard, or from the mouse if bit 8 is set */
+	@Override
+	public void input (final int value) {
+		pushData(value & 0xff, (value & 0x100) != 0);
+	}
+	
 	@Override
 	public boolean isMapped (int addr) {
 		final int offset = addr - baseAddr;
@@ -46,6 +46,8 @@ public class Malta extends MultiDevice {
 	/** the southbridge */
 	private final PIIX4 p4;
 	private final Uart cbusUart;
+	/** leaf device by page and page offset of kseg1, built by init */
+	private final Device[][] leaves = new Device[0x2000_0000 >>> 12][];
 	
 	public Malta (final Device parent, final int baseAddr) {
 		super(parent, baseAddr);
@@ -53,11 +55,17 @@ public class Malta extends MultiDevice {
 		this.gt = new GT(this, baseAddr + M_GTBASE);
 		this.display = new MaltaDisplay(this, baseAddr + M_DISPLAYS);
 		// XXX strictly, this should be a TI 16C550C, not a SMSC NS 16C550A compatible
-		this.cbusUart = new Uart(this, baseAddr + M_CBUS_UART, 8, "Uart:CBUS");
+		// interrupts not implemented
+		this.cbusUart = new Uart(this, baseAddr + M_CBUS_UART, 8, "Uart:CBUS", -1);
 		this.cbusUart.setDebug(true);
 		this.devices.addAll(Arrays.asList(p4, gt, display, cbusUart, new MaltaRev(this, baseAddr + M_REVISION)));
 	}
 	
+	/** the southbridge */
+	public PIIX4 getPIIX4 () {
+		return p4;
+	}
+	
 	public void setIrq (final int irq) {
 		gt.setIrq(irq);
 	}
@@ -67,17 +75,78 @@ public class Malta extends MultiDevice {
 		log.println("init malta at " + Integer.toHexString(baseAddr));
 		getCpu().getSymbols().init(Malta.class, "M_", null, baseAddr, Integer.MAX_VALUE);
 		super.init();
+		for (Device d : devices) {
+			putLeaves(d);
+		}
+	}
+	
+	/** map the addresses of the device to it, then those of its children to them */
+	private void putLeaves (final Device d) {
+		// device ranges are contiguous from the base address
+		for (int offset = offset(d.getBaseAddr()); offset < 0x2000_0000 && d.isMapped(baseAddr + offset); offset++) {
+			Device[] page = leaves[offset >>> 12];
+			if (page == null) {
+				leaves[offset >>> 12] = page = new Device[0x1000];
+			}
+			page[offset & 0xfff] = d;
+		}
+		if (d instanceof MultiDevice) {
+			for (Device c : ((MultiDevice) d).devices) {
+				putLeaves(c);
+			}
+		}
+	}
+	
+	/** the device that handles the address without any nested devices, or null */
+	public Device getLeaf (final int addr) {
+		final Device[] page = leaves[offset(addr) >>> 12];
+		return page != null ? page[addr & 0xfff] : null;
+	}
+	
+	@Override
+	public byte loadByte (final int addr) {
+		final Device d = getLeaf(addr);
+		return d != null ? d.loadByte(addr) : super.loadByte(addr);
+	}
+	
+	@Override
+	public void storeByte (final int addr, final byte value) {
+		final Device d = getLeaf(addr);
+		if (d != null) {
+			d.storeByte(addr, value);
+		} else {
+			super.storeByte(addr, value);
+		}
+	}
+	
+	@Override
+	public short loadHalfWord (final int addr) {
+		final Device d = getLeaf(addr);
+		return d != null ? d.loadHalfWord(addr) : super.loadHalfWord(addr);
+	}
+	
+	@Override
+	public void storeHalfWord (final int addr, final short value) {
+		final Device d = getLeaf(addr);
+		if (d != null) {
+			d.storeHalfWord(addr, value);
+		} else {
+			super.storeHalfWord(addr, value);
+		}
+	}
+	
+	@Override
+	public int loadWord (final int addr) {
+		final Device d = getLeaf(addr);
+		return d != null ? d.loadWord(addr) : super.loadWord(addr);
 	}
 	
 	@Override
 	public void storeWord (final int addr, final int value) {
-		final int offset = offset(addr);
-		
-		if (offset >= M_UNCACHED_EX_H && offset < M_UNCACHED_EX_H + 0x100) {
-			// should map straight through to memory?
-			// the values look like mips code...
-			log.println("ignore set uncached exception handler " + getCpu().getSymbols().getNameOffset(baseAddr + addr) + " <= " + Integer.toHexString(value));
-			
+		// sdram (including the uncached exception handler) is handled by memory
+		final Device d = getLeaf(addr);
+		if (d != null) {
+			d.storeWord(addr, value);
 		} else {
 			super.storeWord(addr, value);
 		}
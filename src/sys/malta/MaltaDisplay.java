@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.Cpu;
 import sys.mips.Device;
 import sys.util.Logger;
@@ -38,6 +42,24 @@ public class MaltaDisplay extends Device {
 		getCpu().getSymbols().init(MaltaDisplay.class, "M_", null, baseAddr, 4);
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		for (int n = 0; n < asciiPos.length; n++) {
+			out.writeChar(asciiPos[n]);
+		}
+		out.writeInt(ledBar);
+		out.writeInt(asciiWord);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		for (int n = 0; n < asciiPos.length; n++) {
+			asciiPos[n] = in.readChar();
+		}
+		ledBar = in.readInt();
+		asciiWord = in.readInt();
+	}
+	
 	@Override
 	public boolean isMapped (final int addr) {
 		final int offset = addr - baseAddr;
@@ -0,0 +1,97 @@
+package sys.malta;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import sys.mips.Cpu;
+import sys.mips.CpuUtil;
+import sys.mips.Journal;
+
+/**
+ * run a kernel without the ui, e.g. to script a guest shell over a uart
+ * backend at full speed
+ */
+public class MaltaMain {
+	
+	public static void main (String[] args) throws Exception {
+		int memsize = 32 << 20;
+		String com1 = null;
+		String com2 = null;
+		String journal = null;
+		long seed = -1;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			switch (args[i]) {
+				case "-mem":
+					memsize = Integer.parseInt(args[++i]) << 20;
+					break;
+				case "-com1":
+					com1 = args[++i];
+					break;
+				case "-com2":
+					com2 = args[++i];
+					break;
+				case "-seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				case "-record":
+					journal = args[++i];
+					break;
+				default:
+					usage();
+					return;
+			}
+		}
+		if (i == args.length) {
+			usage();
+			return;
+		}
+		
+		final Path path = Paths.get(args[i++]);
+		final List<String> kargs = new ArrayList<>();
+		// linux ignores first arg...
+		kargs.add("linux");
+		while (i < args.length) {
+			kargs.add(args[i++]);
+		}
+		final List<String> env = new ArrayList<>();
+		env.add("memsize");
+		env.add(String.valueOf(memsize));
+		
+		final Cpu cpu;
+		try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+			final int[] top = new int[1];
+			cpu = CpuUtil.loadElf(chan, memsize, top);
+			CpuUtil.setMainArgs(cpu, top[0] + 0x100000, kargs, env);
+		}
+		if (seed >= 0) {
+			cpu.setDeterministic(seed);
+		}
+		if (journal != null) {
+			cpu.setJournal(Journal.record(new File(journal), cpu.getCycle()));
+		}
+		attachBackends(cpu, com1, com2);
+		cpu.run();
+		System.exit(cpu.getExitCode());
+	}
+	
+	/** attach the uart backends described by the specs (see UartBackend.open) to com1 and com2, either may be null */
+	public static void attachBackends (final Cpu cpu, final String com1, final String com2) throws Exception {
+		final PIIX4 p4 = cpu.getMemory().getMalta().getPIIX4();
+		if (com1 != null) {
+			p4.getCom1().setBackend(UartBackend.open(com1));
+		}
+		if (com2 != null) {
+			p4.getCom2().setBackend(UartBackend.open(com2));
+		}
+	}
+	
+	private static void usage () {
+		System.out.println("usage: MaltaMain [-mem mb] [-com1 backend] [-com2 backend] [-seed n] [-record journalfile] elffile [kernel args]");
+		System.out.println("backend: tcp:port, pipe:infile:outfile or stdio");
+	}
+	
+}
@@ -1,5 +1,6 @@
 package sys.malta;
 
+import java.io.*;
 import java.util.*;
 
 import sys.mips.Device;
@@ -22,6 +23,20 @@ public class MultiDevice extends Device {
 		}
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		for (Device d : devices) {
+			d.saveState(out);
+		}
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		for (Device d : devices) {
+			d.loadState(in);
+		}
+	}
+	
 	@Override
 	public boolean isMapped (final int addr) {
 		return getMapped(addr) != null;
@@ -45,18 +45,33 @@ public class PIIX4 extends MultiDevice {
 	private final KBC kbc;
 	private final RTC rtc;
 	private final PIT pit;
+	/** interrupt for each irq, reused so firing doesn't allocate */
+	private final CpuExceptionParams[] irqParams = new CpuExceptionParams[16];
 	
 	public PIIX4(final Device parent, final int baseAddr) {
 		super(parent, baseAddr);
-		this.com1 = new Uart(this, baseAddr + M_COM1, 1, "Uart:COM1");
+		this.com1 = new Uart(this, baseAddr + M_COM1, 1, "Uart:COM1", MaltaUtil.IRQ_UART1);
 		this.com1.setConsole(true);
-		this.com2 = new Uart(this, baseAddr + M_COM2, 1, "Uart:COM2");
+		this.com2 = new Uart(this, baseAddr + M_COM2, 1, "Uart:COM2", MaltaUtil.IRQ_UART0);
 		this.pic1 = new PIC(this, baseAddr + M_PIC_MASTER, true);
 		this.pic2 = new PIC(this, baseAddr + M_PIC_SLAVE, false);
 		this.kbc = new KBC(this, baseAddr + M_KEYBOARD);
 		this.rtc = new RTC(this, baseAddr + M_RTC);
 		this.pit = new PIT(this, baseAddr + M_PIT);
 		this.devices.addAll(Arrays.asList(com1, com2, pic1, pic2, kbc, rtc, pit));
+		for (int n = 0; n < irqParams.length; n++) {
+			irqParams[n] = new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, n);
+		}
+	}
+	
+	/** ttyS0 */
+	public Uart getCom1 () {
+		return com1;
+	}
+	
+	/** ttyS1 */
+	public Uart getCom2 () {
+		return com2;
 	}
 	
 	@Override
@@ -104,7 +119,7 @@ public class PIIX4 extends MultiDevice {
 		
 		// should this queue the interrupts here?
 		// should this set the irq in the gt?
-		getCpu().addException(new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, irq));
+		getCpu().addException(irqParams[irq]);
 		return;
 	}
 }
@@ -1,13 +1,14 @@
 package sys.malta;
 
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import sys.mips.Cpu;
 import sys.mips.CpuConstants;
 import sys.mips.CpuExceptionParams;
 import sys.mips.Device;
+import sys.mips.Scheduler;
 import sys.util.Logger;
 import sys.util.Symbols;
 
@@ -26,7 +27,7 @@ public class PIT extends Device {
 	private int timerCounter0;
 	private int timerControlWord = -1;
 	private int timerCounterByte;
-	private Future<?> timerFuture;
+	private Scheduler.Event timerEvent;
 	
 	public PIT(Device parent, int baseAddr) {
 		super(parent, baseAddr);
@@ -37,6 +38,30 @@ public class PIT extends Device {
 		getCpu().getSymbols().init(PIT.class, "M_", "M_PIT_", baseAddr, 1);
 	}
 
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(timerCounter0);
+		out.writeInt(timerControlWord);
+		out.writeInt(timerCounterByte);
+		// cycles to the next interrupt or -1 if not scheduled
+		out.writeLong(timerEvent != null && !timerEvent.isDone() ? Math.max(timerEvent.getCycle() - getCpu().getScheduler().getCycle(), 0) : -1);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		timerCounter0 = in.readInt();
+		timerControlWord = in.readInt();
+		timerCounterByte = in.readInt();
+		final long delay = in.readLong();
+		if (timerEvent != null) {
+			timerEvent.cancel();
+			timerEvent = null;
+		}
+		if (delay >= 0) {
+			schedule(delay);
+		}
+	}
+	
 	@Override
 	public boolean isMapped (int addr) {
 		final int offset = addr - baseAddr;
@@ -91,31 +116,36 @@ public class PIT extends Device {
 		} else if (timerCounterByte == 1) {
 			timerCounter0 = (timerCounter0 & 0xff) | (value << 8);
 			timerCounterByte = 0;
-			if (timerFuture != null) {
-				timerFuture.cancel(false);
-			}
-			
-			final Cpu cpu = getCpu();
-			final ScheduledExecutorService e = cpu.getExecutor();
-			final CpuExceptionParams ep = new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_TIMER);
-			final Runnable r = () -> cpu.addException(ep);
-			
-			if (timerControlWord == 0x34) {
-				// counter never reaches 0...
-				final double hz = 1193182.0 / (timerCounter0 - 1.5);
-				final long durns = Math.round(1000000000.0 / hz);
-				log.println("schedule pit at fixed rate " + hz + " hz " + (1.0/hz) + " s " + durns + " ns");
-				timerFuture = e.scheduleAtFixedRate(r, durns, durns, TimeUnit.NANOSECONDS);
-				
-			} else if (timerControlWord == 0x38) {
-				final double s = (timerCounter0 - 0.5) / 1193182.0;
-				final long ns = (long) (s * 1_000_000_000.0);
-				log.println("schedule pit once %.4f s %s ns", s, ns);
-				timerFuture = e.schedule(r, ns, TimeUnit.NANOSECONDS);
+			if (timerEvent != null) {
+				timerEvent.cancel();
 			}
+			schedule(-1);
 			
 		} else {
 			throw new RuntimeException("tcw write " + timerCounterByte);
 		}
 	}
+	
+	/** schedule the timer interrupt after the given cycles, or after a full count if -1 */
+	private void schedule (final long delay) {
+		final Cpu cpu = getCpu();
+		final Scheduler s = cpu.getScheduler();
+		final CpuExceptionParams ep = new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_TIMER);
+		final Runnable r = () -> cpu.addException(ep);
+		
+		if (timerControlWord == 0x34) {
+			// counter never reaches 0...
+			final double hz = 1193182.0 / (timerCounter0 - 1.5);
+			final long durns = Math.round(1000000000.0 / hz);
+			log.println("schedule pit at fixed rate " + hz + " hz " + (1.0/hz) + " s " + durns + " ns");
+			final long period = s.nsToCycles(durns);
+			timerEvent = s.scheduleAtFixedRate(r, delay >= 0 ? delay : period, period);
+			
+		} else if (timerControlWord == 0x38) {
+			final double sec = (timerCounter0 - 0.5) / 1193182.0;
+			final long ns = (long) (sec * 1_000_000_000.0);
+			log.println("schedule pit once %.4f s %s ns", sec, ns);
+			timerEvent = s.schedule(r, delay >= 0 ? delay : s.nsToCycles(ns));
+		}
+	}
 }
@@ -0,0 +1,63 @@
+package sys.malta;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+import sys.util.Logger;
+
+/**
+ * uart backend for blocking streams such as stdin/stdout or named pipes.
+ * daemon threads copy between the streams and non-blocking nio pipes.
+ */
+public class PipeUartBackend extends ChannelUartBackend {
+	
+	private static final Logger log = new Logger("PipeUartBackend");
+	
+	/** open named pipes (e.g. created with mkfifo), this blocks until both ends are open */
+	public static PipeUartBackend open (final File in, final File out) throws IOException {
+		return new PipeUartBackend(new FileInputStream(in), new FileOutputStream(out));
+	}
+	
+	private static Pipe.SourceChannel rxPipe (final InputStream in) throws IOException {
+		final Pipe p = Pipe.open();
+		pump("rx", in, Channels.newOutputStream(p.sink()));
+		return p.source();
+	}
+	
+	private static Pipe.SinkChannel txPipe (final OutputStream out) throws IOException {
+		final Pipe p = Pipe.open();
+		pump("tx", Channels.newInputStream(p.source()), out);
+		return p.sink();
+	}
+	
+	/** copy from one stream to the other until either closes */
+	private static void pump (final String name, final InputStream from, final OutputStream to) {
+		final Thread t = new Thread(() -> {
+			final byte[] buf = new byte[0x1000];
+			try {
+				int n;
+				while ((n = from.read(buf)) >= 0) {
+					to.write(buf, 0, n);
+					to.flush();
+				}
+			} catch (IOException e) {
+				log.println(name + " pipe failed: " + e);
+			} finally {
+				try {
+					to.close();
+				} catch (IOException e) {
+					//
+				}
+			}
+		});
+		t.setName("Uart-" + name + "-" + t.getName());
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	public PipeUartBackend (final InputStream in, final OutputStream out) throws IOException {
+		super(rxPipe(in), txPipe(out));
+	}
+	
+}
@@ -1,8 +1,8 @@
 package sys.malta;
 
+import java.io.*;
 import java.math.BigDecimal;
 import java.util.*;
-import java.util.concurrent.*;
 
 import sys.mips.*;
 import sys.util.*;
@@ -64,11 +64,16 @@ public class RTC extends Device {
 	private static final int C_IRQF = 0x80;
 	
 	public static void main (String[] args) throws Exception {
-		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		// one cycle per millisecond of real time
+		final Scheduler scheduler = new Scheduler(() -> System.nanoTime() / 1_000_000, 1000);
 		final RTC dev = new RTC(null, 0) {
 			@Override
-			protected ScheduledExecutorService getExecutor () {
-				return executor;
+			protected Scheduler getScheduler () {
+				return scheduler;
+			}
+			@Override
+			protected Calendar getCalendar () {
+				return new GregorianCalendar();
 			}
 		};
 		dev.write(I_REGB, 0);
@@ -89,6 +94,7 @@ public class RTC extends Device {
 		dev.write(I_REGA, 0x2f); // 2 = normal dvx, f = 500ms pi
 		long st = System.nanoTime(), t;
 		while ((t = System.nanoTime()) < st + NS_IN_S * 5) {
+			scheduler.run();
 			int c1 = dev.read(I_REGC);
 			if ((c1 & C_PF) != 0) {
 				System.out.println("pf set at " + (1.0*(t-st))/NS_IN_S);
@@ -104,11 +110,11 @@ public class RTC extends Device {
 		dev.write(I_REGA, 0x20);
 		dev.read(I_REGC);
 		Thread.sleep(1000);
+		scheduler.run();
 		if (dev.read(I_REGC) != 0) {
 			throw new Exception("flag set...");
 		}
 		
-		executor.shutdown();
 		System.out.println("done");
 	}
 	
@@ -157,7 +163,7 @@ public class RTC extends Device {
 	private int controlb;
 	private int controlc;
 	private double period;
-	private Future<?> timerFuture;
+	private Scheduler.Event timerEvent;
 	
 	public RTC(Device parent, int baseAddr) {
 		super(parent, baseAddr);
@@ -171,6 +177,36 @@ public class RTC extends Device {
 		getCpu().getSymbols().init(getClass(), "M_", "M_RTC_", baseAddr, 1);
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(rtcadr);
+		out.writeInt(rtcdat);
+		out.writeInt(controla);
+		out.writeInt(controlb);
+		out.writeInt(controlc);
+		out.writeDouble(period);
+		// cycles to the next periodic interrupt or -1 if not scheduled
+		out.writeLong(timerEvent != null && !timerEvent.isDone() ? Math.max(timerEvent.getCycle() - getScheduler().getCycle(), 0) : -1);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		rtcadr = in.readInt();
+		rtcdat = in.readInt();
+		controla = in.readInt();
+		controlb = in.readInt();
+		controlc = in.readInt();
+		period = in.readDouble();
+		final long delay = in.readLong();
+		if (timerEvent != null) {
+			timerEvent.cancel();
+			timerEvent = null;
+		}
+		if (delay >= 0 && period > 0) {
+			schedule(delay);
+		}
+	}
+	
 	@Override
 	public boolean isMapped (int addr) {
 		final int offset = addr - baseAddr;
@@ -220,7 +256,7 @@ public class RTC extends Device {
 		log.println(0, "rtc adr write " + value);
 		rtcadr = value & 0xff;
 		// should freeze this if reg c set is 1
-		final Calendar c = new GregorianCalendar();
+		final Calendar c = getCalendar();
 		
 		switch (value) {
 			case I_SEC:
@@ -305,18 +341,23 @@ public class RTC extends Device {
 		if (period != rsp) {
 			log.println("period changed from " + period + " to " + rsp);
 			period = rsp;
-			if (timerFuture != null) {
-				timerFuture.cancel(false);
-				timerFuture = null;
+			if (timerEvent != null) {
+				timerEvent.cancel();
+				timerEvent = null;
 			}
 			
 			if (rsp > 0) {
-				long rspNs = (long) (rsp * NS_IN_S);
-				timerFuture = getExecutor().scheduleAtFixedRate(() -> fireInt(), rspNs, rspNs, TimeUnit.NANOSECONDS);
+				schedule(getScheduler().nsToCycles((long) (rsp * NS_IN_S)));
 			}
 		}
 	}
 	
+	/** schedule the periodic interrupt at the current period after the given cycles */
+	private void schedule (final long delay) {
+		final Scheduler s = getScheduler();
+		timerEvent = s.scheduleAtFixedRate(() -> fireInt(), delay, s.nsToCycles((long) (period * NS_IN_S)));
+	}
+	
 	private void fireInt() {
 		if ((controlb & 0x40) != 0) {
 			// add the exception...
@@ -359,8 +400,16 @@ public class RTC extends Device {
 		return l.toString();
 	}
 	
-	protected ScheduledExecutorService getExecutor() {
-		return getCpu().getExecutor();
+	/** the current time, from the cpu so it can be deterministic */
+	protected Calendar getCalendar () {
+		final Cpu cpu = getCpu();
+		final Calendar c = cpu.isDeterministic() ? new GregorianCalendar(TimeZone.getTimeZone("UTC")) : new GregorianCalendar();
+		c.setTimeInMillis(cpu.currentTimeMillis());
+		return c;
+	}
+	
+	protected Scheduler getScheduler () {
+		return getCpu().getScheduler();
 	}
 	
 }
@@ -0,0 +1,86 @@
+package sys.malta;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import sys.util.Logger;
+
+/**
+ * uart backend listening for one tcp connection at a time, e.g. for telnet
+ * or nc. transmitted bytes are dropped while nothing is connected.
+ */
+public class TcpUartBackend implements UartBackend {
+	
+	private static final Logger log = new Logger("TcpUartBackend");
+	
+	private final ServerSocketChannel server;
+	private ChannelUartBackend client;
+	
+	/** listen on the loopback address */
+	public TcpUartBackend (final int port) throws IOException {
+		this(new InetSocketAddress("localhost", port));
+	}
+	
+	public TcpUartBackend (final InetSocketAddress addr) throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(addr);
+		server.configureBlocking(false);
+		log.println("listening on " + server.getLocalAddress());
+	}
+	
+	/** the bound port, useful if the port was 0 */
+	public int getPort () throws IOException {
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+	
+	/** accept a connection if there isn't one, return true if connected */
+	private boolean connect () throws IOException {
+		if (client == null) {
+			final SocketChannel c = server.accept();
+			if (c != null) {
+				log.println("connected to " + c.getRemoteAddress());
+				client = new ChannelUartBackend(c, c);
+			}
+		}
+		return client != null;
+	}
+	
+	@Override
+	public int read (final ByteBuffer buf) throws IOException {
+		if (connect()) {
+			final int n = client.read(buf);
+			if (n >= 0) {
+				return n;
+			}
+			// wait for the next connection
+			log.println("disconnected");
+			client.close();
+			client = null;
+		}
+		return 0;
+	}
+	
+	@Override
+	public void write (final ByteBuffer buf) throws IOException {
+		if (connect()) {
+			client.write(buf);
+		} else {
+			buf.position(buf.limit());
+		}
+	}
+	
+	@Override
+	public void close () throws IOException {
+		try {
+			if (client != null) {
+				client.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+}
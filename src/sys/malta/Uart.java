@@ -1,7 +1,14 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import sys.mips.Cpu;
 import sys.mips.Device;
+import sys.mips.Journal;
+import sys.mips.Scheduler;
 import sys.util.Logger;
 import sys.util.Symbols;
 
@@ -13,11 +20,20 @@ import static sys.malta.UartUtil.*;
  */
 public class Uart extends Device {
 	
+	/** virtual time between backend polls while receiving */
+	private static final long POLL_BUSY_NS = 50_000;
+	/** virtual time between backend polls otherwise */
+	private static final long POLL_IDLE_NS = 1_000_000;
+	
 	private final Logger log;
 	private final String name;
 	private final StringBuilder consoleSb = new StringBuilder();
 	private final byte[] rxFifo = new byte[16];
 	private final int offsetMul;
+	/** irq raised through the pic, or -1 if none */
+	private final int irq;
+	private final ByteBuffer rxBuf = ByteBuffer.allocate(16);
+	private final ByteBuffer txBuf = ByteBuffer.allocate(1);
 	
 	private boolean console;
 	private boolean debug;
@@ -28,13 +44,24 @@ public class Uart extends Device {
 	private int lsr;
 	private int rxRead;
 	private int rxWrite;
+	/** divisor latch */
+	private int dll;
+	private int dlm;
+	/** transmitter holding register empty interrupt pending */
+	private boolean thri;
+	/** irq raised and interrupt still pending */
+	private boolean raised;
+	private UartBackend backend;
+	private Scheduler.Event pollEvent;
 	
-	public Uart(Device parent, final int baseAddr, final int offsetMul, final String name) {
+	public Uart(Device parent, final int baseAddr, final int offsetMul, final String name, final int irq) {
 		super(parent, baseAddr);
 		this.offsetMul = offsetMul;
 		this.log = new Logger(name);
 		this.name = name;
-		this.lsr |= LSR_THRE;
+		this.irq = irq;
+		// transmission is instant
+		this.lsr |= LSR_THRE | LSR_TEMT;
 	}
 
 	public boolean isConsole () {
@@ -53,12 +80,100 @@ public class Uart extends Device {
 		this.debug = debug;
 	}
 	
+	public UartBackend getBackend () {
+		return backend;
+	}
+	
+	/**
+	 * attach the host side of the uart, or null to detach (doesn't close the
+	 * previous backend). the backend is polled in virtual time and received
+	 * bytes are cpu inputs, so they are journalled. call while the cpu is not
+	 * running.
+	 */
+	public void setBackend (final UartBackend backend) {
+		log.println("set backend " + backend);
+		this.backend = backend;
+		if (pollEvent != null) {
+			pollEvent.cancel();
+			pollEvent = null;
+		}
+		if (backend != null) {
+			schedulePoll(POLL_IDLE_NS);
+		}
+	}
+	
+	private void schedulePoll (final long ns) {
+		final Scheduler s = getCpu().getScheduler();
+		pollEvent = s.schedule(this::poll, s.nsToCycles(ns));
+	}
+	
+	/** read as much as fits in the rx fifo from the backend */
+	private void poll () {
+		final Cpu cpu = getCpu();
+		final Journal j = cpu.getJournal();
+		int n = 0;
+		if (j == null || !j.isReplaying()) {
+			// queued inputs have been applied by now
+			final int free = 15 - (((rxWrite + 16) - rxRead) & 0xf);
+			rxBuf.clear();
+			rxBuf.limit(free);
+			try {
+				n = free > 0 ? backend.read(rxBuf) : 0;
+			} catch (IOException e) {
+				log.println("backend read failed: " + e);
+				n = -1;
+			}
+			if (n < 0) {
+				log.println("backend closed");
+				backend = null;
+				pollEvent = null;
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				cpu.addInput(this, rxBuf.get(i) & 0xff);
+			}
+		}
+		schedulePoll(n > 0 ? POLL_BUSY_NS : POLL_IDLE_NS);
+	}
+	
 	@Override
 	public void init () {
 		log.println("init uart " + name + " at " + Integer.toHexString(baseAddr));
 		getCpu().getSymbols().init(UartUtil.class, "M_", "M_" + name + "_", baseAddr, 1, offsetMul);
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(ier);
+		out.writeInt(mcr);
+		out.writeInt(lcr);
+		out.writeInt(iir);
+		out.writeInt(lsr);
+		out.writeInt(rxRead);
+		out.writeInt(rxWrite);
+		out.write(rxFifo);
+		out.writeInt(dll);
+		out.writeInt(dlm);
+		out.writeBoolean(thri);
+		out.writeBoolean(raised);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		ier = in.readInt();
+		mcr = in.readInt();
+		lcr = in.readInt();
+		iir = in.readInt();
+		lsr = in.readInt();
+		rxRead = in.readInt();
+		rxWrite = in.readInt();
+		in.readFully(rxFifo);
+		dll = in.readInt();
+		dlm = in.readInt();
+		thri = in.readBoolean();
+		raised = in.readBoolean();
+	}
+	
 	@Override
 	public boolean isMapped (final int addr) {
 		// can't compare addr and baseAddr directly due to signed values
@@ -76,6 +191,10 @@ public class Uart extends Device {
 		// don't validate size, just assume byte
 		final int offset = (addr - baseAddr) / offsetMul;
 		
+		if ((lcr & LCR_DLAB) != 0 && offset < 2) {
+			return (byte) (offset == 0 ? dll : dlm);
+		}
+		
 		switch (offset) {
 			case M_RX_TX:
 				// should probably check if fifo enabled first
@@ -90,7 +209,8 @@ public class Uart extends Device {
 						// reset ready bit
 						lsr &= ~LSR_DR;
 					}
-					log.println("uart receiver buffer read %x remaining %d", x, rem);
+					if (debug) log.println("uart receiver buffer read %x remaining %d", x, rem);
+					updateIrq();
 					return x;
 				}
 			case M_LSR: {
@@ -98,6 +218,7 @@ public class Uart extends Device {
 				//log.println("uart read lsr %x", x);
 				// reset overrun bit on read
 				lsr &= ~LSR_OE;
+				updateIrq();
 				return (byte) x;
 			}
 			case M_IER:
@@ -109,9 +230,16 @@ public class Uart extends Device {
 			case M_LCR:
 				if (debug) log.println("uart read lcr %x", lcr);
 				return (byte) lcr;
-			case M_FCR_IIR_EFR:
-				if (debug) log.println("uart read iir %x", iir);
-				return (byte) iir;
+			case M_FCR_IIR_EFR: {
+				final int id = interruptId();
+				if (debug) log.println("uart read iir %x", iir | id);
+				if (id == IIR_THRI) {
+					// reading the iir clears the thr empty interrupt
+					thri = false;
+					updateIrq();
+				}
+				return (byte) (iir | id);
+			}
 			default:
 				throw new RuntimeException("unknown uart read " + offset);
 		}
@@ -127,29 +255,34 @@ public class Uart extends Device {
 		// don't validate size, just assume byte
 		final int offset = (addr - baseAddr) / offsetMul;
 		
+		if ((lcr & LCR_DLAB) != 0 && offset < 2) {
+			if (offset == 0) {
+				dll = value & 0xff;
+			} else {
+				dlm = value & 0xff;
+			}
+			if (debug) log.println("set %s divisor %d", name, (dlm << 8) | dll);
+			return;
+		}
+		
 		switch (offset) {
 			case M_RX_TX:
 				if ((mcr & MCR_LOOPBACK) != 0) {
 					// this is a guess...
-					// should trigger interrupt at some point?
-					final int i = (rxWrite + 1) & 0xf;
-					if (i != rxRead) {
-						rxFifo[rxWrite] = value;
-						rxWrite = i;
-						// set ready bit
-						lsr |= LSR_DR;
-					} else {
-						// set overrun bit
-						//log.println("uart tx overrun");
-						lsr |= LSR_OE;
-					}
+					receive(value);
 				} else {
+					if (backend != null) {
+						transmit(value);
+					}
 					if (console) {
 						consoleWrite(value);
-					} else {
+					} else if (backend == null) {
 						log.println("write " + Integer.toHexString(value & 0xff));
 					}
 				}
+				// the byte has gone already
+				thri = true;
+				updateIrq();
 				return;
 				
 			case M_IER: {
@@ -162,6 +295,9 @@ public class Uart extends Device {
 								rls?" received-line-status":"", thre?" transmitter-holding-register-empty":"");
 				// we only want bottom 4 bits, linux might set more to autodetect other chips
 				ier = (byte) (value & 0xf);
+				// the thr is always empty, so enabling the interrupt raises it
+				thri = thre;
+				updateIrq();
 				return;
 			}
 			case M_MCR: {
@@ -173,6 +309,7 @@ public class Uart extends Device {
 				final boolean loop = (value & MCR_LOOPBACK) != 0;
 				if (debug) log.println("set %s mcr %x =%s%s%s%s%s",
 						name, value, dtr ? " dtr" : "", rts ? " rts" : "", out1 ? " out1" : "", out2 ? " out2" : "", loop ? " loopback" : "");
+				updateIrq();
 				return;
 			}
 			case M_LCR: {
@@ -198,6 +335,8 @@ public class Uart extends Device {
 					// clear the receive fifo
 					rxRead = 0;
 					rxWrite = 0;
+					lsr &= ~LSR_DR;
+					updateIrq();
 				}
 				if (debug) log.println("set %s fcr %x =%s%s%s",
 						name, value, en ? " enable-fifo" : "", cr ? " clear-rcvr" : "", cx ? " clear-xmit" : "");
@@ -208,6 +347,65 @@ public class Uart extends Device {
 		}
 	}
 	
+	/** a received byte */
+	@Override
+	public void input (final int value) {
+		receive((byte) value);
+		updateIrq();
+	}
+	
+	private void transmit (final byte value) {
+		txBuf.clear();
+		txBuf.put(value);
+		txBuf.flip();
+		try {
+			backend.write(txBuf);
+		} catch (IOException e) {
+			log.println("backend write failed: " + e);
+		}
+	}
+	
+	/** the highest priority pending interrupt as in the iir */
+	private int interruptId () {
+		if ((ier & IER_RLSI) != 0 && (lsr & LSR_OE) != 0) {
+			return IIR_RLSI;
+		} else if ((ier & IER_RDAI) != 0 && (lsr & LSR_DR) != 0) {
+			// as if the trigger level is 1
+			return IIR_RDI;
+		} else if ((ier & IER_THREI) != 0 && thri) {
+			return IIR_THRI;
+		} else {
+			return IIR_NOINT;
+		}
+	}
+	
+	/**
+	 * fire the irq if an interrupt is now pending. the irq only reaches the
+	 * pic if out2 is set, as on a pc.
+	 */
+	private void updateIrq () {
+		final boolean p = irq >= 0 && (mcr & MCR_OUTPUT2) != 0 && interruptId() != IIR_NOINT;
+		if (p && !raised) {
+			if (debug) log.println("fire %s irq %d iir %x", name, irq, interruptId());
+			fire(irq);
+		}
+		raised = p;
+	}
+	
+	private void receive (final byte value) {
+		final int i = (rxWrite + 1) & 0xf;
+		if (i != rxRead) {
+			rxFifo[rxWrite] = value;
+			rxWrite = i;
+			// set ready bit
+			lsr |= LSR_DR;
+		} else {
+			// set overrun bit
+			//log.println("uart rx overrun");
+			lsr |= LSR_OE;
+		}
+	}
+	
 	private void consoleWrite (final byte value) {
 		if (value >= 32 || value == '\n') {
 			consoleSb.append((char) value);
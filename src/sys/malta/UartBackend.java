@@ -0,0 +1,37 @@
+package sys.malta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * host side of a uart (e.g. a socket or pipe). used on the cpu thread, so
+ * it must never block.
+ */
+public interface UartBackend extends Closeable {
+	
+	/**
+	 * open the backend described by the spec, one of tcp:port (listen on the
+	 * loopback address), pipe:infile:outfile (named pipes) or stdio
+	 */
+	static UartBackend open (final String spec) throws IOException {
+		final String[] a = spec.split(":");
+		if (a.length == 2 && a[0].equals("tcp")) {
+			return new TcpUartBackend(Integer.parseInt(a[1]));
+		} else if (a.length == 3 && a[0].equals("pipe")) {
+			return PipeUartBackend.open(new File(a[1]), new File(a[2]));
+		} else if (a.length == 1 && a[0].equals("stdio")) {
+			return new PipeUartBackend(System.in, System.out);
+		} else {
+			throw new IOException("invalid uart backend " + spec + ", expected tcp:port, pipe:infile:outfile or stdio");
+		}
+	}
+	
+	/** read received bytes into the buffer, return the count or -1 if closed */
+	int read (ByteBuffer buf) throws IOException;
+	
+	/** write transmitted bytes, anything that can't be buffered is dropped */
+	void write (ByteBuffer buf) throws IOException;
+	
+}
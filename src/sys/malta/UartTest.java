@@ -0,0 +1,134 @@
+package sys.malta;
+
+import sys.mips.Cpu;
+import sys.mips.Device;
+
+import static sys.malta.UartUtil.*;
+
+/**
+ * regression tests for the uart registers and interrupts
+ */
+public class UartTest {
+	
+	private static final int IRQ = MaltaUtil.IRQ_UART1;
+	
+	public static void main (String[] args) {
+		final UartTest t = new UartTest();
+		t.interruptPriority();
+		t.thrEmptyOnIer();
+		t.divisorLatch();
+		t.out2GatesIrq();
+		t.cpu.getExecutor().shutdown();
+		System.out.println("passed");
+	}
+	
+	private static void asEq (String name, int expected, int actual) {
+		if (expected != actual) {
+			throw new RuntimeException(name + ": expected " + Integer.toHexString(expected) + " actual " + Integer.toHexString(actual));
+		}
+	}
+	
+	private final Cpu cpu = new Cpu(4 << 20, true);
+	private int fired;
+	
+	/** a uart at address 0 whose irqs are counted */
+	private Uart newUart () {
+		fired = 0;
+		final Device parent = new Device(null, 0) {
+			@Override
+			public void fire (final int irq) {
+				asEq("irq", IRQ, irq);
+				fired++;
+			}
+			
+			@Override
+			public Cpu getCpu () {
+				return cpu;
+			}
+		};
+		return new Uart(parent, 0, 1, "Uart:test", IRQ);
+	}
+	
+	private static int read (final Uart u, final int offset) {
+		return u.loadByte(offset) & 0xff;
+	}
+	
+	private static void write (final Uart u, final int offset, final int value) {
+		u.storeByte(offset, (byte) value);
+	}
+	
+	/** iir reports line status, then received data, then thr empty */
+	private void interruptPriority () {
+		final Uart u = newUart();
+		write(u, M_MCR, MCR_OUTPUT2);
+		write(u, M_IER, IER_RLSI | IER_RDAI | IER_THREI);
+		// one more than the fifo holds
+		for (int n = 0; n < 16; n++) {
+			u.input(n);
+		}
+		asEq("overrun", IIR_RLSI, read(u, M_FCR_IIR_EFR));
+		asEq("lsr", LSR_OE | LSR_DR, read(u, M_LSR) & (LSR_OE | LSR_DR));
+		asEq("received", IIR_RDI, read(u, M_FCR_IIR_EFR));
+		for (int n = 0; n < 15; n++) {
+			asEq("rx", n, read(u, M_RX_TX));
+		}
+		asEq("thr empty", IIR_THRI, read(u, M_FCR_IIR_EFR));
+		asEq("thr empty read", IIR_NOINT, read(u, M_FCR_IIR_EFR));
+		asEq("fired", 1, fired);
+	}
+	
+	/** enabling the thr empty interrupt raises it as the thr is always empty */
+	private void thrEmptyOnIer () {
+		final Uart u = newUart();
+		write(u, M_MCR, MCR_OUTPUT2);
+		write(u, M_IER, IER_THREI);
+		asEq("fired", 1, fired);
+		asEq("iir", IIR_THRI, read(u, M_FCR_IIR_EFR));
+		asEq("cleared", IIR_NOINT, read(u, M_FCR_IIR_EFR));
+		write(u, M_IER, 0);
+		write(u, M_IER, IER_THREI);
+		asEq("fired again", 2, fired);
+		// transmitting raises it again
+		read(u, M_FCR_IIR_EFR);
+		write(u, M_RX_TX, 'x');
+		asEq("fired after tx", 3, fired);
+		asEq("iir after tx", IIR_THRI, read(u, M_FCR_IIR_EFR));
+	}
+	
+	/** with dlab set the first two registers are the divisor latch */
+	private void divisorLatch () {
+		final Uart u = newUart();
+		write(u, M_IER, IER_RDAI);
+		write(u, M_LCR, LCR_DLAB | 3);
+		write(u, M_RX_TX, 0x0c);
+		write(u, M_IER, 0x01);
+		asEq("dll", 0x0c, read(u, M_RX_TX));
+		asEq("dlm", 0x01, read(u, M_IER));
+		write(u, M_LCR, 3);
+		asEq("ier", IER_RDAI, read(u, M_IER));
+		asEq("lcr", 3, read(u, M_LCR));
+		asEq("no tx", 0, fired);
+	}
+	
+	/** the irq only reaches the pic with out2 set and fires on the rising edge */
+	private void out2GatesIrq () {
+		final Uart u = newUart();
+		write(u, M_IER, IER_RDAI);
+		u.input('a');
+		asEq("no out2", 0, fired);
+		write(u, M_MCR, MCR_OUTPUT2);
+		asEq("out2", 1, fired);
+		u.input('b');
+		asEq("still pending", 1, fired);
+		read(u, M_RX_TX);
+		read(u, M_RX_TX);
+		asEq("iir", IIR_NOINT, read(u, M_FCR_IIR_EFR));
+		u.input('c');
+		asEq("edge", 2, fired);
+		write(u, M_MCR, 0);
+		read(u, M_RX_TX);
+		u.input('d');
+		asEq("out2 cleared", 2, fired);
+	}
+	
+}
@@ -87,6 +87,14 @@ public class UartUtil {
 	
 	/** fifo control is enabled or receiver fifo trigger level */
 	public static final int IIR_FIFO = 0xc0;
+	/** no interrupt pending */
+	public static final int IIR_NOINT = 0x1;
+	/** transmitter holding register empty interrupt pending */
+	public static final int IIR_THRI = 0x2;
+	/** received data available interrupt pending */
+	public static final int IIR_RDI = 0x4;
+	/** receiver line status interrupt pending */
+	public static final int IIR_RLSI = 0x6;
 	
 	/** received data available interrupt */
 	public static final int IER_RDAI = 0x1;
@@ -0,0 +1,18 @@
+package sys.mips;
+
+/**
+ * access to a physical address past the end of ram that isn't a device
+ */
+public class AddressException extends RuntimeException {
+	
+	/** the address used by the program */
+	public final int vaddr;
+	public final int paddr;
+	
+	public AddressException (final int vaddr, final int paddr) {
+		super(String.format("no ram at %08x (physical %08x)", vaddr, paddr));
+		this.vaddr = vaddr;
+		this.paddr = paddr;
+	}
+	
+}
@@ -0,0 +1,204 @@
+package sys.mips;
+
+import static sys.mips.CpuConstants.*;
+
+/**
+ * a straight line run of predecoded instructions within one physical page,
+ * ending with a branch or jump and its delay slot. blocks are counted each
+ * time the cpu lands on their first instruction and are compiled (i.e.
+ * collected from the code cache) once they are hot, after which Cpu.execBlock
+ * runs them without fetching or translating each instruction.
+ */
+public final class Block {
+	
+	/** number of entries before the block is compiled */
+	public static final int HOT_COUNT = 50;
+	/** maximum instructions in a block */
+	public static final int MAX_LENGTH = 64;
+	
+	/** instruction can be executed in a block */
+	public static final int KIND_SIMPLE = 0;
+	/** instruction changes pc3 and ends the block after its delay slot */
+	public static final int KIND_BRANCH = 1;
+	/** instruction must be executed by the interpreter */
+	public static final int KIND_BARRIER = 2;
+	
+	/** instruction is executed on its own */
+	public static final int FUSE_NONE = 0;
+	/** lui rt then addiu rt2, rt (address formation) */
+	public static final int FUSE_LUI_ADDIU = 1;
+	/** lui rt then ori rt2, rt (address or constant formation) */
+	public static final int FUSE_LUI_ORI = 2;
+	/** lw rt then beq/bne on rt */
+	public static final int FUSE_LW_BRANCH = 3;
+	/** addiu sp, sp then sw relative to sp (function prologue) */
+	public static final int FUSE_ADDIU_SW = 4;
+	/** jr then its delay slot */
+	public static final int FUSE_JR_DELAY = 5;
+	public static final int FUSE_COUNT = 6;
+	public static final String[] FUSE_NAMES = { "none", "lui+addiu", "lui+ori", "lw+branch", "addiu+sw", "jr+delay" };
+	
+	private static final Decoded[] EMPTY = new Decoded[0];
+	
+	/** return the fused handler for the pair of instructions, or FUSE_NONE */
+	public static int fuse (final Decoded d1, final Decoded d2) {
+		switch (d1.op) {
+			case OP_LUI:
+				if (d2.rs == d1.rt) {
+					if (d2.op == OP_ADDIU) {
+						return FUSE_LUI_ADDIU;
+					} else if (d2.op == OP_ORI) {
+						return FUSE_LUI_ORI;
+					}
+				}
+				return FUSE_NONE;
+			case OP_LW:
+				if ((d2.op == OP_BEQ || d2.op == OP_BNE) && (d2.rs == d1.rt || d2.rt == d1.rt)) {
+					return FUSE_LW_BRANCH;
+				}
+				return FUSE_NONE;
+			case OP_ADDIU:
+				if (d1.rt == REG_SP && d1.rs == REG_SP && d2.op == OP_SW && d2.rs == REG_SP) {
+					return FUSE_ADDIU_SW;
+				}
+				return FUSE_NONE;
+			case OP_SPECIAL:
+				if (d1.fn == FN_JR) {
+					return FUSE_JR_DELAY;
+				}
+				return FUSE_NONE;
+			default:
+				return FUSE_NONE;
+		}
+	}
+	
+	/** classify instruction for block building */
+	public static int kind (final Decoded d) {
+		switch (d.op) {
+			case OP_SPECIAL:
+				switch (d.fn) {
+					case FN_JR:
+					case FN_JALR:
+						return KIND_BRANCH;
+					case FN_SYSCALL:
+					case FN_BREAK:
+					case FN_TGE:
+					case FN_TGEU:
+					case FN_TLT:
+					case FN_TLTU:
+					case FN_TEQ:
+					case FN_TNE:
+						// call execException directly
+						return KIND_BARRIER;
+					default:
+						return KIND_SIMPLE;
+				}
+			case OP_REGIMM:
+				switch (d.rt) {
+					case RT_BLTZ:
+					case RT_BGEZ:
+					case RT_BLTZAL:
+					case RT_BGEZAL:
+						return KIND_BRANCH;
+					default:
+						return KIND_BARRIER;
+				}
+			case OP_J:
+			case OP_JAL:
+			case OP_BEQ:
+			case OP_BNE:
+			case OP_BLEZ:
+			case OP_BGTZ:
+				return KIND_BRANCH;
+			case OP_COP1:
+				return d.rs == FP_RS_BC1 ? KIND_BRANCH : KIND_SIMPLE;
+			case OP_COP1X:
+			case OP_SPECIAL2:
+			case OP_SPECIAL3:
+			case OP_ADDIU:
+			case OP_SLTI:
+			case OP_SLTIU:
+			case OP_ANDI:
+			case OP_ORI:
+			case OP_XORI:
+			case OP_LUI:
+			case OP_LB:
+			case OP_LH:
+			case OP_LWL:
+			case OP_LW:
+			case OP_LBU:
+			case OP_LHU:
+			case OP_LWR:
+			case OP_SB:
+			case OP_SH:
+			case OP_SWL:
+			case OP_SW:
+			case OP_SWR:
+			case OP_LL:
+			case OP_SC:
+			case OP_LWC1:
+			case OP_LDC1:
+			case OP_SWC1:
+			case OP_SDC1:
+			case OP_PREF:
+				return KIND_SIMPLE;
+			default:
+				// cop0 (eret, tlb writes, status changes) and anything unknown
+				return KIND_BARRIER;
+		}
+	}
+	
+	/** instructions, null until compiled, empty if not compilable */
+	public Decoded[] isns;
+	/** fused handler for each instruction, the second of a pair is FUSE_NONE */
+	public byte[] fuse;
+	/**
+	 * index of the trailing branch, or of the fused pair containing it, or the
+	 * length if the block doesn't end with a branch
+	 */
+	public int unit;
+	/** number of times entered */
+	public int count;
+	
+	/** set the instructions from the given run of decoded instructions */
+	public void compile (final Decoded[] run, final int len) {
+		// find the first branch with a usable delay slot
+		int n = 0;
+		while (n < len) {
+			final int k = kind(run[n]);
+			if (k == KIND_BARRIER) {
+				break;
+			} else if (k == KIND_BRANCH) {
+				if (n + 1 < len && kind(run[n + 1]) == KIND_SIMPLE) {
+					n += 2;
+				}
+				break;
+			}
+			n++;
+		}
+		if (n > 1) {
+			isns = new Decoded[n];
+			System.arraycopy(run, 0, isns, 0, n);
+			fuse = new byte[n];
+			unit = n;
+			for (int i = 0; i < n; i++) {
+				final int f = i < n - 1 ? fuse(isns[i], isns[i + 1]) : FUSE_NONE;
+				if (kind(isns[i]) == KIND_BRANCH || (f != FUSE_NONE && kind(isns[i + 1]) == KIND_BRANCH)) {
+					unit = i;
+				}
+				if (f != FUSE_NONE) {
+					fuse[i] = (byte) f;
+					i++;
+				}
+			}
+		} else {
+			// not worth it
+			isns = EMPTY;
+		}
+	}
+	
+	@Override
+	public String toString () {
+		return "Block[count=" + count + " len=" + (isns != null ? isns.length : -1) + "]";
+	}
+}
@@ -0,0 +1,108 @@
+package sys.mips;
+
+import java.nio.ByteBuffer;
+
+/**
+ * per physical page cache of predecoded instructions and blocks. entries are
+ * created on instruction fetch, a store to a page drops the written word and
+ * all blocks of the page, so self modifying code and loaders are handled
+ * without explicit flushes. as the cache is physically indexed and branch
+ * targets are computed at run time, tlb writes don't invalidate it.
+ */
+public final class CodeCache {
+	
+	/** 4k page as words */
+	public static final int PAGE_WORD_SHIFT = 10;
+	public static final int PAGE_WORD_MASK = (1 << PAGE_WORD_SHIFT) - 1;
+	
+	private static final class Page {
+		/** decoded instructions by word offset, null if not fetched */
+		final Decoded[] isns = new Decoded[PAGE_WORD_MASK + 1];
+		/** blocks by word offset of first instruction, null if none */
+		Block[] blocks;
+	}
+	
+	/** backing data of memory */
+	private final ByteBuffer data;
+	private final Page[] pages;
+	private final Decoded[] run = new Decoded[Block.MAX_LENGTH];
+	
+	private int blockCount;
+	
+	public CodeCache (final ByteBuffer data) {
+		this.data = data;
+		this.pages = new Page[((data.capacity() >>> 2) + PAGE_WORD_MASK) >>> PAGE_WORD_SHIFT];
+	}
+	
+	/** get decoded instruction for physical word index */
+	public final Decoded get (final int i) {
+		Page page = pages[i >>> PAGE_WORD_SHIFT];
+		if (page == null) {
+			pages[i >>> PAGE_WORD_SHIFT] = page = new Page();
+		}
+		Decoded d = page.isns[i & PAGE_WORD_MASK];
+		if (d == null) {
+			page.isns[i & PAGE_WORD_MASK] = d = new Decoded(data.getInt(i << 2));
+		}
+		return d;
+	}
+	
+	/** count entry to block at physical word index, compile if hot */
+	public final Block getBlock (final int i) {
+		// make sure the page exists
+		get(i);
+		final Page page = pages[i >>> PAGE_WORD_SHIFT];
+		Block[] blocks = page.blocks;
+		if (blocks == null) {
+			page.blocks = blocks = new Block[PAGE_WORD_MASK + 1];
+		}
+		final int o = i & PAGE_WORD_MASK;
+		Block b = blocks[o];
+		if (b == null) {
+			blocks[o] = b = new Block();
+		}
+		if (b.isns == null && ++b.count >= Block.HOT_COUNT) {
+			// collect instructions up to the end of the page
+			final int len = Math.min(Block.MAX_LENGTH, PAGE_WORD_MASK + 1 - o);
+			for (int n = 0; n < len; n++) {
+				run[n] = get(i + n);
+			}
+			b.compile(run, len);
+			blockCount++;
+		}
+		return b;
+	}
+	
+	/** physical word index has been written */
+	public final void store (final int i) {
+		final Page page = pages[i >>> PAGE_WORD_SHIFT];
+		if (page != null) {
+			page.isns[i & PAGE_WORD_MASK] = null;
+			page.blocks = null;
+		}
+	}
+	
+	/** drop everything */
+	public final void clear () {
+		for (int n = 0; n < pages.length; n++) {
+			pages[n] = null;
+		}
+	}
+	
+	/** number of pages containing decoded instructions */
+	public int getPageCount () {
+		int c = 0;
+		for (int n = 0; n < pages.length; n++) {
+			if (pages[n] != null) {
+				c++;
+			}
+		}
+		return c;
+	}
+	
+	/** number of blocks compiled (including since invalidated blocks) */
+	public int getBlockCount () {
+		return blockCount;
+	}
+	
+}
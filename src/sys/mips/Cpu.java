@@ -8,12 +8,9 @@ import static sys.mips.CpuFunctions.fn;
 import static sys.mips.CpuFunctions.fpcc;
 import static sys.mips.CpuFunctions.fptf;
 import static sys.mips.CpuFunctions.jump;
-import static sys.mips.CpuFunctions.op;
-import static sys.mips.CpuFunctions.random;
 import static sys.mips.CpuFunctions.rd;
 import static sys.mips.CpuFunctions.rs;
 import static sys.mips.CpuFunctions.rt;
-import static sys.mips.CpuFunctions.sa;
 import static sys.mips.CpuFunctions.sel;
 import static sys.mips.CpuFunctions.simm;
 import static sys.mips.CpuFunctions.vpn2;
@@ -21,13 +18,20 @@ import static sys.mips.InstructionUtil.cpRegName;
 import static sys.mips.InstructionUtil.opString;
 
 import java.beans.PropertyChangeSupport;
-import java.util.ArrayDeque;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import sys.malta.MaltaUtil;
 import sys.util.Log;
@@ -41,6 +45,14 @@ public final class Cpu {
 	
 	private static final ThreadLocal<Cpu> instance = new ThreadLocal<>();
 	private static final Logger log = new Logger("Cpu");
+	/** maximum cycles between checks for pending exceptions */
+	private static final int MAX_BURST = 1024;
+	/** maximum pending exceptions, more are dropped */
+	private static final int MAX_EXCEPTIONS = 64;
+	/** default virtual clock rate for device timers */
+	private static final long CYCLES_PER_SECOND = 50_000_000;
+	/** real time at cycle 0 in deterministic mode (2000-01-01 UTC) */
+	private static final long DETERMINISTIC_EPOCH_MS = 946_684_800_000L;
 	
 	/** allow other classes to access cpu */
 	public static Cpu getInstance() {
@@ -54,21 +66,65 @@ public final class Cpu {
 	private final CpuStats stats = new CpuStats();
 	private final Memory memory;
 	private final boolean littleEndian;
-	/** pending exception queue, must be synchronised on this */
-	private final Deque<CpuExceptionParams> exceptions = new ArrayDeque<>();
+	/** pending exception queue, added to by any thread, polled by cpu thread */
+	private final Queue<CpuExceptionParams> exceptions = new ConcurrentLinkedQueue<>();
+	/** entries in the exception queue, reserved before adding */
+	private final AtomicInteger exceptionCount = new AtomicInteger();
+	/** bit per interrupt and irq in the exception queue, see pendingKey */
+	private final AtomicLongArray pendingInterrupts = new AtomicLongArray(5);
+	/** host input queue, added to by any thread, polled by cpu thread */
+	private final Queue<Journal.Input> inputs = new ConcurrentLinkedQueue<>();
 	/** 0 for little endian, 3 for big endian */
 	private final int wordAddrXor;
 	private final Fpu fpu = new Fpu(this);
 	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 	private final PropertyChangeSupport support = new PropertyChangeSupport(this);
-	/** pending logs queue, must be synchronised on this */
+	/** pending logs queue, must be synchronised on itself */
 	private final List<Log> logs = new ArrayList<>();
 	private final Symbols symbols = new Symbols();
+	private final Trace trace = new Trace();
+	/** reused for synchronous exceptions on the thread running the cpu */
+	private final CpuException exception = new CpuException();
+	/** device timers in cycles, run at burst boundaries */
+	private final Scheduler scheduler = new Scheduler(() -> this.cycle, CYCLES_PER_SECOND);
 	
-	/** cycle count, used as value of CPR_COUNT */
-	private volatile long cycle;
+	/** cycle count, used as value of CPR_COUNT, only valid on cpu thread */
+	private long cycle;
+	/** cycle count at start of current burst, for other threads */
+	private volatile long burstCycle;
+	/**
+	 * cycles left in current burst. not volatile, other threads set it to
+	 * zero to end the burst early, a lost write only delays them by at most
+	 * MAX_BURST cycles.
+	 */
+	private int burst;
 	private volatile boolean logScheduled;
+	/**
+	 * set after adding to the exception queue, cleared by the cpu thread
+	 * before polling it
+	 */
 	private volatile boolean exceptionPending;
+	/** set after adding to the input queue, cleared before polling it */
+	private volatile boolean inputPending;
+	/** add executed instructions to trace */
+	private volatile boolean tracing;
+	/** executed wait and no exception pending yet */
+	private boolean waiting;
+	/** thread parked in idle, if any */
+	private volatile Thread idleThread;
+	/** thread in run, if any */
+	private volatile Thread runThread;
+	/** program exited, see exitCode */
+	private boolean exited;
+	private int exitCode;
+	/** exception that stopped the cpu */
+	private RuntimeException fault;
+	/** reproducible tlb random, idle and real time clock */
+	private boolean deterministic;
+	/** xorshift state for the tlb random index, never 0 */
+	private long randomState = System.nanoTime() | 1;
+	/** journal being recorded or replayed, if any */
+	private Journal journal;
 	
 	/**
 	 * within execOp: address of current instruction. if pc2 != pc + 4 then the
@@ -89,7 +145,12 @@ public final class Cpu {
 	private long compare;
 	
 	public Cpu (int memsize, boolean littleEndian) {
-		this.memory = new Memory(this, memsize, littleEndian);
+		this(ByteBuffer.allocateDirect(memsize), littleEndian);
+	}
+	
+	/** create cpu with the given ram, e.g. a file mapped by MemoryUtil.mapRam */
+	public Cpu (ByteBuffer ram, boolean littleEndian) {
+		this.memory = new Memory(this, ram, littleEndian);
 		this.littleEndian = littleEndian;
 		this.wordAddrXor = littleEndian ? 0 : 3;
 		
@@ -142,8 +203,9 @@ public final class Cpu {
 		c.set(cpRegister, b ? 1 : 0);
 	}
 	
+	/** exact on cpu thread, otherwise the cycle at the start of the current burst */
 	public final long getCycle () {
-		return cycle;
+		return instance.get() == this ? cycle : burstCycle;
 	}
 	
 	public final Memory getMemory () {
@@ -203,6 +265,11 @@ public final class Cpu {
 		return executor;
 	}
 	
+	/** device timer events, only used on the cpu thread or while it is not running */
+	public final Scheduler getScheduler () {
+		return scheduler;
+	}
+	
 	public final PropertyChangeSupport getSupport () {
 		return support;
 	}
@@ -215,8 +282,81 @@ public final class Cpu {
 		return stats;
 	}
 	
+	/**
+	 * fill in and return the synchronous exception, for the caller to throw.
+	 * other threads (e.g. the ui reading memory) get a new one so they can't
+	 * change the one the cpu is handling.
+	 */
+	final CpuException exception (final int excode, final int vaddr, final boolean tlbRefill) {
+		final CpuException e = Thread.currentThread() == runThread ? exception : new CpuException();
+		return e.set(excode, -1, -1, vaddr, tlbRefill);
+	}
+	
+	public Trace getTrace () {
+		return trace;
+	}
+	
+	public boolean isDeterministic () {
+		return deterministic;
+	}
+	
+	/**
+	 * make execution reproducible for the same inputs: the tlb random index
+	 * comes from the seed, idle skips straight to the next timer cycle
+	 * instead of sleeping, and the real time clock is derived from the cycle
+	 * count. call before running.
+	 */
+	public void setDeterministic (final long seed) {
+		deterministic = true;
+		randomState = seed != 0 ? seed : 1;
+	}
+	
+	/** wall clock time for devices, virtual time if deterministic */
+	public long currentTimeMillis () {
+		final long t = deterministic ? DETERMINISTIC_EPOCH_MS + scheduler.cyclesToNs(cycle) / 1_000_000 : System.currentTimeMillis();
+		return journal != null ? journal.value(Journal.TIME, t) : t;
+	}
+	
+	public Journal getJournal () {
+		return journal;
+	}
+	
+	/**
+	 * record nondeterministic inputs to the journal or replay them from it,
+	 * or null to stop. a replayed journal must start at the current cycle.
+	 * call while the cpu is not running.
+	 */
+	public void setJournal (final Journal journal) {
+		if (journal != null && journal.isReplaying() && journal.getStartCycle() != cycle) {
+			throw new RuntimeException("journal starts at cycle " + journal.getStartCycle() + " not " + cycle);
+		}
+		this.journal = journal;
+	}
+	
+	/** true if the cpu executed wait and has no pending exception */
+	public boolean isWaiting () {
+		return waiting;
+	}
+	
+	public int getExitCode () {
+		return exitCode;
+	}
+	
+	public RuntimeException getFault () {
+		return fault;
+	}
+	
+	public boolean isTracing () {
+		return tracing;
+	}
+	
+	/** enable or disable tracing, can be called from any thread */
+	public void setTracing (boolean tracing) {
+		this.tracing = tracing;
+	}
+	
 	public final void addLog(Log log) {
-		synchronized (this) {
+		synchronized (logs) {
 			logs.add(log);
 			if (executor.isShutdown()) {
 				fireLogs();
@@ -231,7 +371,7 @@ public final class Cpu {
 	
 	private void fireLogs () {
 		Log[] a;
-		synchronized (this) {
+		synchronized (logs) {
 			a = logs.toArray(new Log[logs.size()]);
 			logs.clear();
 			logScheduled = false;
@@ -256,83 +396,376 @@ public final class Cpu {
         }
     }
 	
-	/** never returns, throws runtime exception... */
+	/**
+	 * run until the program exits, blocking while the cpu is waiting for an
+	 * interrupt. throws runtime exception on fault.
+	 */
 	public final void run () {
 		stats.startTimeNs = System.nanoTime();
 		
 		try {
-			instance.set(this);
 			log.println("run");
-			// this should only be checked during call
-			//			int f = memory.getSymbols().getAddr("size_fifo");
-			//			if (f == 0) {
-			//				throw new RuntimeException();
-			//			}
-			//			boolean x = false;
-			
 			while (true) {
-				// set up zero before anything
-				if (register[0] != 0) {
-					register[0] = 0;
+				final RunStatus status = run(Long.MAX_VALUE, true, false);
+				if (status == RunStatus.EXIT) {
+					log.println("exiting... ");
+					break;
+				} else if (status == RunStatus.FAULT) {
+					throw fault;
+				} else if (status == RunStatus.WAITING) {
+					idle(Long.MAX_VALUE);
 				}
-				
-				//final boolean printCall = calls.isPrintAfterNext();
-				
-				// set up pc before handling exception
-				pc = pc2;
-				pc2 = pc3;
-				pc3 += 4;
-				
-				//				if (pc == f) {
-				//					log.println("----- size_fifo -----");
-				//					disasm = true;
-				//					calls.setPrintCalls(true);
-				//					x = true;
-				//				}
-				
-				//				if (x) {
-				//					log.println(memory.getSymbols().getNameOffset(pc));
-				//				}
-				
-				// set up cycle before exception
-				// don't set CPR_CAUSE twice...
-				//				final int cmp = cpRegister[CPR_COMPARE];
-				//				final int count = (int) (cycle >>> 1);
-				if (cycle++ == compare) {
-					// IP7, hardware interrupt 5 (timer)
-					log.println("compare hit");
-					setCpValue(CPR_CAUSE_IP, 1 << MaltaUtil.INT_R4KTIMER);
-					// XXX should add 2^32 to compare...
-					if (interruptsEnabled) {
-						throw new RuntimeException("compare interrupt");
-					}
-				} else if (exceptionPending) {
-					if (checkException()) {
-						// restart loop, start executing exception handler...
-						continue;
+			}
+			
+		} finally {
+			stats.endTimeNs = System.nanoTime();
+			log.println("ended");
+			log.println("run time: " + stats.durationS());
+			log.println("waits: " + stats.waitCount + " wait time: " + stats.waitTimeNs + " idle cycles: " + stats.idleCycles);
+			log.println("total time: " + stats.totalS());
+			log.println("nanoseconds per isn: " + (stats.durationNs() / Math.max(cycle, 1)));
+			log.println("exceptions: " + stats.exceptionsString());
+			log.println("interrupts: " + stats.interruptsString());
+			log.println("irqs: " + stats.irqsString());
+			log.println("coalesced irqs: " + stats.coalescedIrqsString() + " interrupts: " + stats.coalescedInterrupts + " dropped exceptions: " + stats.droppedExceptions);
+			log.println("isns by pop: " + stats.instructionsByPop());
+			log.println("code pages: " + memory.getCodeCache().getPageCount());
+			log.println("blocks: " + memory.getCodeCache().getBlockCount() + " block isns: " + stats.blockIsns);
+			log.println("fusions: " + stats.fusionsString());
+			if (journal != null) {
+				try {
+					journal.flush();
+				} catch (IOException e) {
+					log.println("could not flush journal: " + e);
+				}
+			}
+			executor.shutdown();
+			fireLogs();
+		}
+	}
+	
+	/**
+	 * execute at most max instructions on the calling thread and return why
+	 * execution stopped. can be called again to resume unless the program
+	 * exited or faulted. doesn't shut down the executor. after a wait
+	 * instruction the cycle count skips straight to the compare cycle or the
+	 * next device event without sleeping (the skipped cycles count towards
+	 * max), so a guest waiting for a timer makes progress in a plain loop of
+	 * run calls. returns WAITING only if nothing is scheduled that could end
+	 * the wait, e.g. the guest waits for input from addException or addInput.
+	 */
+	public final RunStatus run (final long max) {
+		return run(max, true, true);
+	}
+	
+	/**
+	 * execute at most n instructions one at a time with the interpreter (i.e.
+	 * without the block tier), otherwise the same as run (long)
+	 */
+	public final RunStatus step (final int n) {
+		return run(n, false, true);
+	}
+	
+	/**
+	 * if skipIdle is false, return WAITING as soon as the cpu waits, so the
+	 * caller can idle in real time
+	 */
+	private RunStatus run (final long max, final boolean blocks, final boolean skipIdle) {
+		if (exited) {
+			return RunStatus.EXIT;
+		} else if (fault != null) {
+			return RunStatus.FAULT;
+		} else if (waiting && !exceptionPending && !skipIdle) {
+			return RunStatus.WAITING;
+		}
+		
+		if (stats.startTimeNs == 0) {
+			stats.startTimeNs = System.nanoTime();
+		}
+		final Cpu prev = instance.get();
+		instance.set(this);
+		runThread = Thread.currentThread();
+		try {
+			return execBursts(max, blocks, skipIdle);
+			
+		} catch (RuntimeException e) {
+			log.println(e.toString());
+			final int a = MemoryUtil.toAddr(e);
+			fault = new RuntimeException("cycle " + cycle
+					+ " le: " + littleEndian
+					+ " km: " + kernelMode
+					+ " ie: " + interruptsEnabled 
+					+ " ex: " + execException
+					+ " pc: " + symbols.getNameAddrOffset(pc)
+					+ (a != 0 ? " addr: " + symbols.getNameAddrOffset(a) : ""),
+					e);
+			return RunStatus.FAULT;
+			
+		} finally {
+			burstCycle = cycle;
+			stats.endTimeNs = System.nanoTime();
+			runThread = null;
+			if (prev != null) {
+				instance.set(prev);
+			} else {
+				instance.remove();
+			}
+		}
+	}
+	
+	/** run bursts until max instructions have been executed or the cpu stops */
+	private RunStatus execBursts (long max, final boolean blocks, final boolean skipIdle) {
+		while (max > 0) {
+			if (waiting) {
+				if (exceptionPending) {
+					waiting = false;
+				} else if (!skipIdle) {
+					return RunStatus.WAITING;
+				} else {
+					final long skipped = skipIdle(max);
+					if (skipped < 0) {
+						return RunStatus.WAITING;
 					}
+					max -= skipped;
+					continue;
 				}
-				
-				try {
-					// this might cause tlb miss...
-					final int isn = memory.loadWord(pc);
+			}
+			
+			// run up to the compare cycle, the next device event or the end of
+			// the burst without checking for interrupts
+			burstCycle = cycle;
+			if (cycle >= scheduler.getNextCycle()) {
+				// may add exceptions
+				scheduler.run();
+			}
+			if (inputPending || cycle >= nextInputCycle()) {
+				// may add exceptions
+				runInputs();
+			}
+			if (journal != null) {
+				journal.flushIfDue();
+			}
+			if (cycle == compare) {
+				// IP7, hardware interrupt 5 (timer)
+				log.println("compare hit");
+				setCpValue(CPR_CAUSE_IP, 1 << MaltaUtil.INT_R4KTIMER);
+				// XXX should add 2^32 to compare...
+				if (interruptsEnabled) {
+					throw new RuntimeException("compare interrupt");
+				}
+			} else if (exceptionPending) {
+				if (checkException()) {
+					// restart loop, start executing exception handler...
+					continue;
+				}
+			}
+			
+			long n = MAX_BURST;
+			final long toCompare = compare - cycle;
+			if (toCompare > 0 && toCompare < n) {
+				n = toCompare;
+			}
+			final long toEvent = scheduler.getNextCycle() - cycle;
+			if (toEvent > 0 && toEvent < n) {
+				n = toEvent;
+			}
+			final long toInput = nextInputCycle() - cycle;
+			if (toInput > 0 && toInput < n) {
+				n = toInput;
+			}
+			burst = (int) (n < max ? n : max);
+			final long start = cycle;
+			final boolean exit = execBurst(tracing || !blocks);
+			max -= cycle - start;
+			if (exit) {
+				exited = true;
+				return RunStatus.EXIT;
+			}
+		}
+		return RunStatus.BUDGET;
+	}
+	
+	/**
+	 * while waiting, skip to the compare cycle or the next device event (at
+	 * most max cycles) without sleeping and run what is due. returns the
+	 * cycles skipped, or -1 if there is nothing that could end the wait.
+	 */
+	private long skipIdle (final long max) {
+		final long toCompare = compare - cycle;
+		final long toNext = toNextEvent(toCompare);
+		if (toNext == Long.MAX_VALUE && !inputPending && nextInputCycle() == Long.MAX_VALUE) {
+			return -1;
+		}
+		stats.waitCount++;
+		long cycles = toNext < Long.MAX_VALUE ? Math.min(toNext, max) : 0;
+		if (journal != null) {
+			cycles = journal.value(Journal.IDLE, cycles);
+		}
+		idled(cycles, toCompare);
+		return cycles;
+	}
+	
+	/** cycles to the compare cycle or the next device event, or Long.MAX_VALUE if neither */
+	private long toNextEvent (final long toCompare) {
+		final long next = scheduler.getNextCycle();
+		long toNext = Long.MAX_VALUE;
+		if (toCompare > 0) {
+			toNext = toCompare;
+		}
+		if (next != Long.MAX_VALUE && next - cycle < toNext) {
+			toNext = Math.max(next - cycle, 0);
+		}
+		return toNext;
+	}
+	
+	/**
+	 * if the cpu is waiting, park the calling thread until an exception is
+	 * pending, the compare cycle or next device event is due or maxNs have
+	 * passed. the cycle count is advanced by the time spent idle at the
+	 * scheduler clock rate and due device events are run.
+	 */
+	public final void idle (final long maxNs) {
+		if (!waiting || exceptionPending) {
+			return;
+		}
+		
+		final long toCompare = compare - cycle;
+		final long toNext = toNextEvent(toCompare);
+		long timeoutNs = maxNs;
+		if (journal != null && journal.isReplaying()) {
+			// the journal has the cycles spent idle
+			timeoutNs = 0;
+		} else if (toNext < Long.MAX_VALUE) {
+			// when deterministic, only wait if there are no timers
+			timeoutNs = deterministic ? 0 : Math.min(timeoutNs, scheduler.cyclesToNs(toNext));
+		}
+		
+		stats.waitCount++;
+		if (journal != null && timeoutNs > 0) {
+			// don't leave the recording buffered while idle
+			try {
+				journal.flush();
+			} catch (IOException e) {
+				throw new RuntimeException("could not write journal", e);
+			}
+		}
+		final long t = System.nanoTime();
+		idleThread = Thread.currentThread();
+		try {
+			long left = timeoutNs;
+			while (!exceptionPending && !inputPending && left > 0) {
+				LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) {
+					throw new RuntimeException("interrupted while idle");
+				}
+				left = timeoutNs - (System.nanoTime() - t);
+			}
+		} finally {
+			idleThread = null;
+		}
+		final long ns = System.nanoTime() - t;
+		stats.waitTimeNs += ns;
+		
+		long cycles = deterministic ? (toNext < Long.MAX_VALUE ? toNext : 0) : Math.min(scheduler.nsToCycles(ns), toNext);
+		if (journal != null) {
+			cycles = journal.value(Journal.IDLE, cycles);
+		}
+		idled(cycles, toCompare);
+	}
+	
+	/** advance the cycle count by cycles spent idle and run what is due */
+	private void idled (final long cycles, final long toCompare) {
+		if (toCompare > 0 && cycles == toCompare) {
+			// timer is due, continue after the wait
+			waiting = false;
+		}
+		cycle += cycles;
+		burstCycle = cycle;
+		stats.idleCycles += cycles;
+		if (cycle >= scheduler.getNextCycle()) {
+			// device events, any interrupts end the wait
+			scheduler.run();
+		}
+		if (inputPending || cycle >= nextInputCycle()) {
+			runInputs();
+		}
+	}
+	
+	/** cycle of the next input in the journal being replayed, if any */
+	private long nextInputCycle () {
+		return journal != null && journal.isReplaying() ? journal.getNextInputCycle() : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * apply the queued host inputs at the current cycle and record them, or
+	 * the inputs due in the journal being replayed
+	 */
+	private void runInputs () {
+		Journal.Input i;
+		if (journal != null && journal.isReplaying()) {
+			while ((i = journal.nextInput(cycle)) != null) {
+				applyInput(i);
+			}
+		} else {
+			inputPending = false;
+			while ((i = inputs.poll()) != null) {
+				i.cycle = cycle;
+				if (journal != null) {
+					journal.record(i);
+				}
+				applyInput(i);
+			}
+		}
+	}
+	
+	private void applyInput (final Journal.Input i) {
+		if (log.isLoggable(0)) {
+			log.println(0, "apply " + i);
+		}
+		if (i.ep != null) {
+			if (queueException(i.ep)) {
+				exceptionPending = true;
+			}
+		} else {
+			final Device d = memory.getMalta().getLeaf(i.addr);
+			if (d == null) {
+				throw new RuntimeException("no device for input " + i);
+			}
+			d.input(i.value);
+		}
+	}
+	
+	/**
+	 * execute instructions until the burst is used up, tracing and not using
+	 * the block tier if traced is true. return true if the program exited.
+	 */
+	private boolean execBurst (final boolean traced) {
+		while (burst > 0) {
+			try {
+				while (burst-- > 0) {
+					// no need to clear r0, writes to it go to REG_DISCARD
+					
+					// set up pc before handling exception
+					final int prevPc = pc;
+					pc = pc2;
+					pc2 = pc3;
+					pc3 += 4;
+					cycle++;
 					
-					/*
-					if (disasmCount > 0) {
-						log.println(CpuUtil.gpRegString(this, regstr));
-						final String name = symbols.getNameAddrOffset(pc);
-						final String x = InstructionUtil.isnString(pc, isn, symbols, this);
-						log.println(String.format("%-40s %08x %s", name, isn, x));
-						if (disasmCount > 0) {
-							disasmCount--;
+					if (pc != prevPc + 4 && pc2 == pc + 4 && !traced) {
+						// landed on a branch target, try the block tier
+						final Block b = memory.loadBlock(pc);
+						if (b != null && execBlock(b)) {
+							continue;
 						}
 					}
-					 */
 					
-					final String name = symbols.getNameAddrOffset(pc);
-                    final String x = InstructionUtil.isnString(pc, isn, symbols, this);
-                    System.out.println("[EXEC] " +  String.format("%-40s %08x %s", name, isn, x));
-
+					// this might cause tlb miss...
+					final Decoded d = memory.loadDecoded(pc);
+					
+					if (traced) {
+						trace.add(cycle, pc, d.isn);
+					}
 					
 					// to signal a synchronous exception, either
 					// 1. call execException and return (more efficient)
@@ -340,68 +773,182 @@ public final class Cpu {
 					// this instruction will be re-executed after the exception handler returns.
 					// to interrupt asynchronously: 
 					// 1. create exception params and call addException 
-					execOp(isn);
-					
-				} catch (CpuException e) {
-					log.println("caught " + e);
-					execException(e.ep);
-				} catch (ExitException e) {
-				    log.println("exiting... ");
-				    break;
+					execOp(d);
 				}
 				
-				//if (countIsns) {
-				//	isnCount.get(IsnSet.getInstance().getIsn(isn).name)[0]++;
-				//}
-				
-				//if (singleStep) {
-				//	while (System.in.read() != 10) {
-				//		//
-				//	}
-				//}
+			} catch (CpuException e) {
+				if (log.isLoggable(0)) {
+					log.println(0, "caught " + e);
+				}
+				execException(e.excode, e.interrupt, e.irq, e.vaddr, e.tlbRefill);
+			} catch (ExitException e) {
+				exitCode = e.code;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/** end the current burst after this instruction, can be called from any thread */
+	private void endBurst () {
+		burst = 0;
+	}
+	
+	/**
+	 * execute the instructions of a compiled block, the first instruction has
+	 * already been counted. return false if the block couldn't be entered.
+	 * pc and cycle are kept current so devices see the right time, pc2 and
+	 * pc3 are only updated for the trailing branch and delay slot, at the
+	 * end or if there is an exception.
+	 */
+	private boolean execBlock (final Block b) {
+		final Decoded[] isns = b.isns;
+		if (isns == null || isns.length == 0) {
+			return false;
+		}
+		final int n = isns.length;
+		if (n - 1 > burst) {
+			// let the interpreter stop at the end of the burst
+			return false;
+		}
+		
+		burst -= n - 1;
+		stats.blockIsns += n;
+		final byte[] fuse = b.fuse;
+		final int unit = b.unit;
+		final int start = pc;
+		final long startCycle = cycle;
+		int k = 0;
+		try {
+			while (k < unit) {
+				pc = start + (k << 2);
+				cycle = startCycle + k;
+				final int f = fuse[k];
+				if (f == Block.FUSE_NONE) {
+					execOp(isns[k]);
+					k++;
+				} else {
+					execFused(f, isns[k], isns[k + 1]);
+					k += 2;
+				}
 			}
 			
-		} catch (Exception e) {
-			log.println(e.toString());
-			int a = MemoryUtil.toAddr(e);
-			throw new RuntimeException("cycle " + cycle
-					+ " le: " + littleEndian
-					+ " km: " + kernelMode
-					+ " ie: " + interruptsEnabled 
-					+ " ex: " + execException
-					+ " pc: " + symbols.getNameAddrOffset(pc)
-					+ (a > 0 ? " addr (kseg0): " + symbols.getNameAddrOffset(a) : ""),
-					e);
+			if (unit == n) {
+				// no branch, continue after the last instruction
+				pc = start + ((n - 1) << 2);
+				pc2 = pc + 4;
+				pc3 = pc + 8;
+				cycle = startCycle + n - 1;
+				return true;
+			}
 			
-		} finally {
-			stats.endTimeNs = System.nanoTime();
-			log.println("ended");
-			log.println("run time: " + stats.durationS());
-			log.println("waits: " + stats.waitCount + " wait time: " + stats.waitTimeNs);
-			log.println("total time: " + stats.totalS());
-			log.println("nanoseconds per isn: " + (stats.durationNs() / cycle));
-			log.println("exceptions: " + stats.exceptionsString());
-			log.println("interrupts: " + stats.interruptsString());
-			log.println("irqs: " + stats.irqsString());
-			log.println("isns by pop: " + stats.instructionsByPop());
-			instance.remove();
-			executor.shutdown();
-			fireLogs();
+			// branch and delay slot
+			pc = start + (unit << 2);
+			pc2 = pc + 4;
+			pc3 = pc + 8;
+			cycle = startCycle + unit;
+			final int f = fuse[unit];
+			if (f == Block.FUSE_NONE) {
+				execOp(isns[unit]);
+				k = unit + 1;
+			} else {
+				execFused(f, isns[unit], isns[unit + 1]);
+				k = unit + 2;
+			}
+			for (; k < n; k++) {
+				nextPc();
+				execOp(isns[k]);
+			}
+			return true;
+			
+		} catch (CpuException e) {
+			// bring state up to date with the faulting instruction
+			final int i = (pc - start) >>> 2;
+			if (i < unit) {
+				pc2 = pc + 4;
+				pc3 = pc + 8;
+				cycle = startCycle + i;
+			}
+			burst += n - 1 - i;
+			throw e;
 		}
 	}
 	
+	/** move to the next instruction within a block */
+	private void nextPc () {
+		pc = pc2;
+		pc2 = pc3;
+		pc3 += 4;
+		cycle++;
+	}
+	
+	/**
+	 * execute a fused pair of instructions (see Block.fuse). pairs without a
+	 * branch only update pc and cycle, pairs with a branch need pc2 and pc3.
+	 */
+	private void execFused (final int f, final Decoded d1, final Decoded d2) {
+		final int[] register = this.register;
+		switch (f) {
+			case Block.FUSE_LUI_ADDIU:
+				register[d1.wrt] = d1.simm << 16;
+				pc += 4;
+				cycle++;
+				register[d2.wrt] = register[d2.rs] + d2.simm;
+				break;
+			case Block.FUSE_LUI_ORI:
+				register[d1.wrt] = d1.simm << 16;
+				pc += 4;
+				cycle++;
+				register[d2.wrt] = register[d2.rs] | d2.imm;
+				break;
+			case Block.FUSE_LW_BRANCH:
+				register[d1.wrt] = memory.loadWord(register[d1.rs] + d1.simm);
+				nextPc();
+				if ((register[d2.rs] == register[d2.rt]) == (d2.op == OP_BEQ)) {
+					execBranch(d2.isn);
+				}
+				break;
+			case Block.FUSE_ADDIU_SW:
+				register[REG_SP] += d1.simm;
+				pc += 4;
+				cycle++;
+				memory.storeWord(register[REG_SP] + d2.simm, register[d2.rt]);
+				break;
+			case Block.FUSE_JR_DELAY:
+				pc3 = register[d1.rs];
+				if (d1.rs == 31) {
+					ret();
+				}
+				nextPc();
+				execOp(d2);
+				break;
+			default:
+				throw new RuntimeException("unknown fused handler " + f);
+		}
+		stats.fusions[f]++;
+	}
+	
 	/** exec exception if there is one */
 	private boolean checkException () {
 		if (interruptsEnabled) {
 			//			if (execException) {
 			//				throw new RuntimeException();
 			//			}
-			CpuExceptionParams ep;
-			synchronized (this) {
-				ep = exceptions.poll();
-				exceptionPending = false;
-			}
+			exceptionPending = false;
+			final CpuExceptionParams ep = exceptions.poll();
 			if (ep != null) {
+				exceptionCount.decrementAndGet();
+				if (ep.excode == EX_INTERRUPT) {
+					clearPending(pendingKey(ep));
+				}
+				if (!exceptions.isEmpty()) {
+					exceptionPending = true;
+				}
+				// the instruction at pc has completed, so move to the next one
+				// (or the branch of its delay slot) for the exception pc
+				pc = pc2;
+				pc2 = pc3;
+				pc3 += 4;
 				execException(ep);
 				return true;
 			}
@@ -409,13 +956,102 @@ public final class Cpu {
 		return false;
 	}
 	
+	/**
+	 * queue asynchronous exception, can be called from any thread without
+	 * locking. an interrupt that is already pending is coalesced with it.
+	 * if there is a journal, exceptions from other threads are host inputs.
+	 */
 	public final void addException (final CpuExceptionParams ep) {
 		//log.println("add exn " + ep);
-		synchronized (this) {
-			exceptions.add(ep);
-			exceptionPending = true;
-			// wake up if cpu currently sleeping
-			notifyAll();
+		if (journal != null && instance.get() != this) {
+			addInput(new Journal.Input(ep));
+			return;
+		}
+		if (!queueException(ep)) {
+			return;
+		}
+		exceptionPending = true;
+		endBurst();
+		// wake up if cpu currently idle
+		final Thread t = idleThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+	
+	/**
+	 * add the exception to the queue unless it is an interrupt that is
+	 * already pending (so e.g. timer ticks missed while interrupts are
+	 * disabled are delivered once and counted as coalesced) or the queue is
+	 * full. returns true if the exception was added. doesn't lock, the
+	 * pending bit of an interrupt is claimed and a place in the queue is
+	 * reserved before adding, the cpu thread releases both when it polls.
+	 */
+	private boolean queueException (final CpuExceptionParams ep) {
+		final int key = ep.excode == EX_INTERRUPT ? pendingKey(ep) : -1;
+		if (key >= 0) {
+			final int i = key >>> 6;
+			final long bit = 1L << key;
+			long w;
+			do {
+				w = pendingInterrupts.get(i);
+				if ((w & bit) != 0) {
+					if (ep.irq >= 0) {
+						stats.coalescedIrqs.incrementAndGet(ep.irq);
+					} else {
+						stats.coalescedInterrupts.incrementAndGet();
+					}
+					return false;
+				}
+			} while (!pendingInterrupts.compareAndSet(i, w, w | bit));
+		}
+		if (exceptionCount.incrementAndGet() > MAX_EXCEPTIONS) {
+			exceptionCount.decrementAndGet();
+			if (key >= 0) {
+				clearPending(key);
+			}
+			stats.droppedExceptions.incrementAndGet();
+			log.println("exception queue full, dropping " + ep);
+			return false;
+		}
+		exceptions.add(ep);
+		return true;
+	}
+	
+	/** bit index of the interrupt and irq (each may be -1) in pendingInterrupts */
+	private static int pendingKey (final CpuExceptionParams ep) {
+		return (ep.interrupt + 1) * 17 + ep.irq + 1;
+	}
+	
+	private void clearPending (final int key) {
+		final int i = key >>> 6;
+		final long bit = 1L << key;
+		long w;
+		do {
+			w = pendingInterrupts.get(i);
+		} while (!pendingInterrupts.compareAndSet(i, w, w & ~bit));
+	}
+	
+	/**
+	 * queue input for the device (e.g. a received byte), can be called from
+	 * any thread. the device gets it on the cpu thread, see Device.input.
+	 */
+	public final void addInput (final Device device, final int value) {
+		addInput(new Journal.Input(device.getBaseAddr(), value));
+	}
+	
+	private void addInput (final Journal.Input i) {
+		if (journal != null && journal.isReplaying()) {
+			log.println("ignoring input while replaying: " + i);
+			return;
+		}
+		inputs.add(i);
+		inputPending = true;
+		endBurst();
+		// wake up if cpu currently idle
+		final Thread t = idleThread;
+		if (t != null) {
+			LockSupport.unpark(t);
 		}
 	}
 	
@@ -426,18 +1062,36 @@ public final class Cpu {
 	// traps.c trap_init
 	// genex.S
 	// malta-int.c plat_irq_dispatch (deals with hardware interrupts)
-	private final void execException (CpuExceptionParams ep) {
-		log.println("exec exception " + ep);
+	private final void execException (final CpuExceptionParams ep) {
+		if (log.isLoggable(0)) {
+			log.println(0, "exec exception " + ep);
+		}
+		execException(ep.excode, ep.interrupt, ep.irq, ep.vaddr, ep.tlbRefill);
+	}
+	
+	/** execute synchronous exception with no parameters */
+	private final void execException (final int excode) {
+		if (log.isLoggable(0)) {
+			log.println(0, "exec exception " + InstructionUtil.exceptionString(excode));
+		}
+		execException(excode, -1, -1, 0, false);
+	}
+	
+	/**
+	 * execute exception, interrupt and irq are -1 if not applicable. doesn't
+	 * allocate for tlb exceptions.
+	 */
+	private final void execException (final int excode, final int interrupt, final int irq, final int vaddr, final boolean tlbRefill) {
 		//		log.println(CpuUtil.gpRegString(this, null));
 		//		log.println(IsnUtil.isnString(this, memory.loadWord(pc)));
 		
 		execException = true;
-		stats.exceptions[ep.excode]++;
-		if (ep.interrupt != null) {
-			stats.interrupts[ep.interrupt.intValue()]++;
+		stats.exceptions[excode]++;
+		if (interrupt >= 0) {
+			stats.interrupts[interrupt]++;
 		}
-		if (ep.irq != null) {
-			stats.irqs[ep.irq.intValue()]++;
+		if (irq >= 0) {
+			stats.irqs[irq]++;
 		}
 		
 		if (getCpValueBoolean(CPR_STATUS_BEV)) {
@@ -457,19 +1111,19 @@ public final class Cpu {
 		// malta-int.c irq_ffs()
 		int pendingMask = 0;
 		
-		switch (ep.excode) {
+		switch (excode) {
 			case EX_INTERRUPT:
 				isInterruptException = true;
-				pendingMask = 1 << ep.interrupt.intValue();
+				pendingMask = 1 << interrupt;
 				if ((getCpValue(CPR_STATUS_IM) & pendingMask) == 0) {
-					throw new RuntimeException("masked interrupt " + ep.interrupt);
+					throw new RuntimeException("masked interrupt " + interrupt);
 				}
-				switch (ep.interrupt.intValue()) {
+				switch (interrupt) {
 					case MaltaUtil.INT_SOUTHBRIDGE:
 						isSouthbridgeInterrupt = true;
 						break;
 					default:
-						throw new RuntimeException("unknown interrupt " + ep.interrupt);
+						throw new RuntimeException("unknown interrupt " + interrupt);
 				}
 				break;
 			case EX_TLB_LOAD:
@@ -479,13 +1133,13 @@ public final class Cpu {
 			case EX_BREAKPOINT:
 				break;
 			default:
-				throw new RuntimeException("unexpected exception " + ep.excode + ": " + InstructionUtil.exceptionString(ep.excode));
+				throw new RuntimeException("unexpected exception " + excode + ": " + InstructionUtil.exceptionString(excode));
 		}
 		
 		// actually handle exception
 		
 		setCpValue(CPR_STATUS_EXL, true);
-		setCpValue(CPR_CAUSE_EXCODE, ep.excode);
+		setCpValue(CPR_CAUSE_EXCODE, excode);
 		setCpValue(CPR_CAUSE_IP, pendingMask);
 		
 		final boolean isDelaySlot = pc2 != pc + 4;
@@ -493,8 +1147,8 @@ public final class Cpu {
 		setCpValue(CPR_EPC_VALUE, isDelaySlot ? pc - 4 : pc);
 		
 		if (isTlbException) {
-			final int vpn2 = vpn2(ep.vaddr.intValue());
-			setCpValue(CPR_BADVADDR_BADVADDR, ep.vaddr.intValue());
+			final int vpn2 = vpn2(vaddr);
+			setCpValue(CPR_BADVADDR_BADVADDR, vaddr);
 			setCpValue(CPR_CONTEXT_BADVPN2, vpn2);
 			setCpValue(CPR_ENTRYHI_VPN2, vpn2);
 		}
@@ -506,10 +1160,10 @@ public final class Cpu {
 		if (isSouthbridgeInterrupt) {
 			// uh....
 			// XXX pretty certain the P4 should be doing this
-			memory.getMalta().setIrq(ep.irq.intValue());
+			memory.getMalta().setIrq(irq);
 		}
 		
-		if (isTlbException && ep.tlbRefill.booleanValue()) {
+		if (isTlbException && tlbRefill) {
 			//log.println("jump to tlb refill vector");
 			setPc(EXV_TLBREFILL);
 			
@@ -534,38 +1188,40 @@ public final class Cpu {
 		// after the delay slot...
 	}
 	
-	private final void execOp (final int isn) {
+	private final void execOp (final Decoded d) {
 		final int[] register = this.register;
-		final int op = op(isn);
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final short simm = simm(isn);
+		final int isn = d.isn;
+		final int op = d.op;
+		final int rs = d.rs;
+		final int rt = d.rt;
+		final int wrt = d.wrt;
+		final int simm = d.simm;
 		
 		switch (op) {
 			case OP_SPECIAL:
-				execFunction(isn);
+				execFunction(d);
 				return;
 			case OP_REGIMM:
-				execRegImm(isn);
+				execRegImm(d);
 				return;
 			case OP_COP0:
 				if (rs < 16) {
-					execCpRs(isn);
+					execCpRs(d);
 				} else {
 					execCpFunction(isn);
 				}
 				return;
 			case OP_COP1:
-				fpu.execFpuRs(isn);
+				fpu.execFpuRs(d);
 				return;
 			case OP_COP1X:
 				fpu.execFpuFnX(isn);
 				return;
 			case OP_SPECIAL2:
-				execFunction2(isn);
+				execFunction2(d);
 				return;
 			case OP_SPECIAL3:
-                execFunction3(isn);
+                execFunction3(d);
                 return;
 			case OP_LWC1:
 				fpu.setFpRegister(rt, memory.loadWord(register[rs] + simm));
@@ -610,13 +1266,13 @@ public final class Cpu {
 				}
 				return;
 			case OP_ADDIU:
-				register[rt] = register[rs] + simm;
+				register[wrt] = register[rs] + simm;
 				return;
 			case OP_ANDI:
-				register[rt] = register[rs] & Short.toUnsignedInt(simm);
+				register[wrt] = register[rs] & d.imm;
 				return;
 			case OP_XORI:
-				register[rt] = register[rs] ^ Short.toUnsignedInt(simm);
+				register[wrt] = register[rs] ^ d.imm;
 				return;
 			case OP_BGTZ:
 				if (register[rs] > 0) {
@@ -624,14 +1280,14 @@ public final class Cpu {
 				}
 				return;
 			case OP_SLTI:
-				register[rt] = register[rs] < simm ? 1 : 0;
+				register[wrt] = register[rs] < simm ? 1 : 0;
 				return;
 			case OP_SLTIU:
 				// sign extend simm to int then compare as unsigned
-				register[rt] = Integer.compareUnsigned(register[rs], simm) < 0 ? 1 : 0;
+				register[wrt] = Integer.compareUnsigned(register[rs], simm) < 0 ? 1 : 0;
 				return;
 			case OP_ORI:
-				register[rt] = register[rs] | Short.toUnsignedInt(simm);
+				register[wrt] = register[rs] | d.imm;
 				return;
 			case OP_SW:
 				memory.storeWord(register[rs] + simm, register[rt]);
@@ -643,12 +1299,11 @@ public final class Cpu {
 				memory.storeByte(register[rs] + simm, (byte) register[rt]);
 				return;
 			case OP_LUI:
-				// short promoted to int for shift
-				register[rt] = simm << 16;
+				register[wrt] = simm << 16;
 				return;
 			case OP_LL: {
 				final int va = register[rs] + simm;
-				register[rt] = memory.loadWord(va);
+				register[wrt] = memory.loadWord(va);
 				register[REG_LLBIT] = 1;
 				return;
 			}
@@ -656,41 +1311,41 @@ public final class Cpu {
 				final int va = register[rs] + simm;
 				if (register[REG_LLBIT] != 0) {
 					memory.storeWord(va, register[rt]);
-					register[rt] = 1;
+					register[wrt] = 1;
 					stats.scSuccess++;
 				} else {
 					log.println("store conditional word failed: va=" + Integer.toHexString(va));
-					register[rt] = 0;
+					register[wrt] = 0;
 					stats.scFail++;
 				}
 				return;
 			case OP_LW:
-				register[rt] = memory.loadWord(register[rs] + simm);
+				register[wrt] = memory.loadWord(register[rs] + simm);
 				return;
 			case OP_LB:
-				register[rt] = memory.loadByte(register[rs] + simm);
+				register[wrt] = memory.loadByte(register[rs] + simm);
 				return;
 			case OP_LBU:
 				// zero extend
-				register[rt] = memory.loadByte(register[rs] + simm) & 0xff;
+				register[wrt] = memory.loadByte(register[rs] + simm) & 0xff;
 				return;
 			case OP_LHU:
-				register[rt] = Short.toUnsignedInt(memory.loadHalfWord(register[rs] + simm));
+				register[wrt] = Short.toUnsignedInt(memory.loadHalfWord(register[rs] + simm));
 				return;
 			case OP_LH:
-				register[rt] = memory.loadHalfWord(register[rs] + simm);
+				register[wrt] = memory.loadHalfWord(register[rs] + simm);
 				return;
 			case OP_LWL:
-				execLWL(isn);
+				execLWL(d);
 				return;
 			case OP_LWR:
-				execLWR(isn);
+				execLWR(d);
 				return;
 			case OP_SWL: 
-				execSWL(isn);
+				execSWL(d);
 				return;
 			case OP_SWR: 
-				execSWR(isn);
+				execSWR(d);
 				return;
 			case OP_PREF:
 				// no-op
@@ -700,15 +1355,13 @@ public final class Cpu {
 		}
 	}
 	
-	private void execSWR (final int isn) {
+	private void execSWR (final Decoded d) {
 		// lealign 0: reg << 0 | memmask >> 32
 		// lealign 1: reg << 8 | memmask >> 24
 		// lealign 2: reg << 16 | memmask >> 16
 		// lealign 3: reg << 24 | memmask >> 8
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final int simm = simm(isn);
-		final int a = register[rs] + simm;
+		final int rt = d.rt;
+		final int a = register[d.rs] + d.simm;
 		final int aa = a & ~3;
 		// force tlb store error
 		memory.index(aa, true);
@@ -719,15 +1372,13 @@ public final class Cpu {
 		memory.storeWord(aa, (register[rt] << lsh) | (word & (int) (ZX_INT_MASK >>> rsh)));
 	}
 	
-	private void execSWL (final int isn) {
+	private void execSWL (final Decoded d) {
 		// lealign 0: memmask << 8 | reg >> 24
 		// lealign 1: memmask << 16 | reg >> 16
 		// lealign 2: memmask << 24 | reg >> 8
 		// lealign 3: memmask << 32 | reg >> 0
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final int simm = simm(isn);
-		final int a = register[rs] + simm;
+		final int rt = d.rt;
+		final int a = register[d.rs] + d.simm;
 		final int aa = a & ~3;
 		// force tlb store error
 		memory.index(aa, true);
@@ -738,36 +1389,32 @@ public final class Cpu {
 		memory.storeWord(aa, (word & (int) (ZX_INT_MASK << lsh)) | (register[rt] >>> rsh));
 	}
 	
-	private void execLWR (final int isn) {
+	private void execLWR (final Decoded d) {
 		// lealign 0: regmask << 32 | mem >> 0
 		// lealign 1: regmask << 24 | mem >> 8
 		// lealign 2: regmask << 16 | mem >> 16
 		// lealign 3: regmask << 8 | mem >> 24
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final int simm = simm(isn);
-		final int a = register[rs] + simm;
+		final int rt = d.rt;
+		final int a = register[d.rs] + d.simm;
 		final int lealign = (a & 3) ^ wordAddrXor;
 		final int mem = memory.loadWord(a & ~3);
 		final int rsh = lealign * 8;
 		final int lsh = 32 - rsh;
-		register[rt] = (register[rt] & (int) (ZX_INT_MASK << lsh)) | (mem >>> rsh);
+		register[d.wrt] = (register[rt] & (int) (ZX_INT_MASK << lsh)) | (mem >>> rsh);
 	}
 	
-	private void execLWL (final int isn) {
+	private void execLWL (final Decoded d) {
 		// lealign 0: mem << 24 | regmask >> 8
 		// lealign 1: mem << 16 | regmask >> 16
 		// lealign 2: mem << 8 | regmask >> 24
 		// lealign 3: mem << 0 | regmask >> 32
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final int simm = simm(isn);
-		final int a = register[rs] + simm;
+		final int rt = d.rt;
+		final int a = register[d.rs] + d.simm;
 		final int lealign = (a & 3) ^ wordAddrXor;
 		final int mem = memory.loadWord(a & ~3);
 		final int rsh = (lealign + 1) * 8;
 		final int lsh = 32 - rsh;
-		register[rt] = (mem << lsh) | (register[rt] & (int) (ZX_INT_MASK >>> rsh));
+		register[d.wrt] = (mem << lsh) | (register[rt] & (int) (ZX_INT_MASK >>> rsh));
 	}
 	
 	/** update pc3 with jump */
@@ -786,9 +1433,10 @@ public final class Cpu {
 		register[31] = pc3;
 	}
 	
-	private final void execRegImm (final int isn) {
-		final int rs = rs(isn);
-		final int rt = rt(isn);
+	private final void execRegImm (final Decoded d) {
+		final int isn = d.isn;
+		final int rs = d.rs;
+		final int rt = d.rt;
 		boolean link = false;
 		
 		switch (rt) {
@@ -815,33 +1463,33 @@ public final class Cpu {
 		}
 	}
 	
-	private final void execFunction (final int isn) {
+	private final void execFunction (final Decoded d) {
 		final int[] register = this.register;
-		final int rd = rd(isn);
-		final int rt = rt(isn);
-		final int rs = rs(isn);
-		final int fn = fn(isn);
+		final int isn = d.isn;
+		final int rd = d.rd;
+		final int wrd = d.wrd;
+		final int rt = d.rt;
+		final int rs = d.rs;
+		final int fn = d.fn;
 		
 		switch (fn) {
 			case FN_SLL:
-				if (rd != 0) {
-					register[rd] = register[rt] << sa(isn);
-				}
+				register[wrd] = register[rt] << d.sa;
 				return;
 			case FN_SRL:
-				register[rd] = register[rt] >>> sa(isn);
+				register[wrd] = register[rt] >>> d.sa;
 					return;
 					case FN_SRA:
-						register[rd] = register[rt] >> sa(isn);
+						register[wrd] = register[rt] >> d.sa;
 				return;
 			case FN_SRLV:
-				register[rd] = register[rt] >>> (register[rs] & 0x1f);
+				register[wrd] = register[rt] >>> (register[rs] & 0x1f);
 		return;
 		case FN_SRAV:
-			register[rd] = register[rt] >> (register[rs] & 0x1f);
+			register[wrd] = register[rt] >> (register[rs] & 0x1f);
 		return;
 		case FN_SLLV:
-			register[rd] = register[rt] << (register[rs] & 0x1f);
+			register[wrd] = register[rt] << (register[rs] & 0x1f);
 			return;
 		case FN_JR:
 			pc3 = register[rs];
@@ -850,18 +1498,18 @@ public final class Cpu {
 			}
 			return;
 		case FN_JALR:
-			register[rd] = pc3;
+			register[wrd] = pc3;
 			pc3 = register[rs];
 			call(pc3);
 			return;
 		case FN_MOVZ:
 			if (register[rt] == 0) {
-				register[rd] = register[rs];
+				register[wrd] = register[rs];
 			}
 			return;
 		case FN_MOVN:
 			if (register[rt] != 0) {
-				register[rd] = register[rs];
+				register[wrd] = register[rs];
 			}
 			return;
 		case FN_SYSCALL:
@@ -873,7 +1521,7 @@ public final class Cpu {
 		    if (syscall == 1) { // MIPS UHI
 		        int syscallNumber = register[2];
 		        if (syscallNumber != 1) { // Must also be 1
-		            execException(new CpuExceptionParams(EX_SYSCALL));
+		            execException(EX_SYSCALL);
 		        }
 		        int operationCode = register[25];
 		        int arg1 = register[4];
@@ -884,15 +1532,17 @@ public final class Cpu {
 		        
                 switch (operationCode) {
                 case 1: // Exit (FIXME: make a clean exit)
-                    throw new ExitException();
+                    throw new ExitException(arg1);
                     //execException(new CpuExceptionParams(EX_SYSCALL));
                 case 5: // long __mips_write (int32_t file, const void *buffer, long count)
                     int fileDescriptor = arg1;
                     int bufferAddress = arg2;
                     int count = arg3;
                     if (fileDescriptor == 1 || fileDescriptor == 2) {
-                        for (int i = 0; i < count; i++) {
-                            writeConsole(memory.loadByte(bufferAddress + i));
+                        final byte[] buf = new byte[Math.max(count, 0)];
+                        memory.copyOut(bufferAddress, buf, 0, buf.length);
+                        for (int i = 0; i < buf.length; i++) {
+                            writeConsole(buf[i]);
                         }
                     } else {
                         log.println("Unknown file descriptor");
@@ -905,28 +1555,28 @@ public final class Cpu {
 //                    break;
                 default:
                     log.println("Unknown UHI SYSCALL: " + operationCode);
-                    execException(new CpuExceptionParams(EX_SYSCALL));
+                    execException(EX_SYSCALL);
                 }
 		    } else {
 		        log.println("Not a UHI SYSCALL:  " + syscall);
-		        execException(new CpuExceptionParams(EX_SYSCALL));
+		        execException(EX_SYSCALL);
 		    }
 		    
 			return;
 		case FN_BREAK:
-			execException(new CpuExceptionParams(EX_BREAKPOINT));
+			execException(EX_BREAKPOINT);
 			return;
 		case FN_SYNC:
 			// no-op
 			return;
 		case FN_MFHI:
-			register[rd] = register[REG_HI];
+			register[wrd] = register[REG_HI];
 			return;
 		case FN_MTHI:
 			register[REG_HI] = register[rs];
 			return;
 		case FN_MFLO:
-			register[rd] = register[REG_LO];
+			register[wrd] = register[REG_LO];
 			return;
 		case FN_MTLO:
 			register[REG_LO] = register[rs];
@@ -970,47 +1620,47 @@ public final class Cpu {
 			return;
 		}
 		case FN_ADDU:
-			register[rd] = register[rs] + register[rt];
+			register[wrd] = register[rs] + register[rt];
 			return;
 		case FN_SUBU:
-			register[rd] = register[rs] - register[rt];
+			register[wrd] = register[rs] - register[rt];
 			return;
 		case FN_AND:
-			register[rd] = register[rs] & register[rt];
+			register[wrd] = register[rs] & register[rt];
 			return;
 		case FN_OR:
-			register[rd] = register[rs] | register[rt];
+			register[wrd] = register[rs] | register[rt];
 			return;
 		case FN_XOR:
-			register[rd] = register[rs] ^ register[rt];
+			register[wrd] = register[rs] ^ register[rt];
 			return;
 		case FN_NOR:
-			register[rd] = ~(register[rs] | register[rt]);
+			register[wrd] = ~(register[rs] | register[rt]);
 			return;
 		case FN_SLT:
-			register[rd] = (register[rs] < register[rt]) ? 1 : 0;
+			register[wrd] = (register[rs] < register[rt]) ? 1 : 0;
 			return;
 		case FN_SLTU:
-			register[rd] = Integer.compareUnsigned(register[rs], register[rt]) < 0 ? 1 : 0;
+			register[wrd] = Integer.compareUnsigned(register[rs], register[rt]) < 0 ? 1 : 0;
 			return;
 		case FN_TEQ:
             if (register[rs] == register[rt]) {
-                execException(new CpuExceptionParams(EX_TRAP));
+                execException(EX_TRAP);
             }
             return;
 		case FN_TNE:
 			if (register[rs] != register[rt]) {
-				execException(new CpuExceptionParams(EX_TRAP));
+				execException(EX_TRAP);
 			}
 			return;
 		case FN_TGE:
             if (register[rs] >= register[rt]) {
-                execException(new CpuExceptionParams(EX_TRAP));
+                execException(EX_TRAP);
             }
             return;
 		case FN_MOVF:
 		    if (fptf(isn) == fccrFcc(fpu.getFpControlReg(), fpcc(isn))) {
-		        register[rd] = register[rs];
+		        register[wrd] = register[rs];
 		    }
             return;
 		default:
@@ -1018,11 +1668,11 @@ public final class Cpu {
 		}
 	}
 	
-	private final void execFunction2 (final int isn) {
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final int rd = rd(isn);
-		final int fn = fn(isn);
+	private final void execFunction2 (final Decoded d) {
+		final int rs = d.rs;
+		final int rt = d.rt;
+		final int wrd = d.wrd;
+		final int fn = d.fn;
 		
 		switch (fn) {
 			case FN2_MADD: {
@@ -1037,7 +1687,7 @@ public final class Cpu {
 				// sign extend, return bottom 32 bits of result
 				long rsValue = register[rs];
 				long rtValue = register[rt];
-				register[rd] = (int) (rsValue * rtValue);
+				register[wrd] = (int) (rsValue * rtValue);
 				return;
 			}
 			case FN2_CLZ: {
@@ -1046,7 +1696,7 @@ public final class Cpu {
 				while (n < 32 && (value & (1 << (31 - n))) == 0) {
 					n++;
 				}
-				register[rd] = n;
+				register[wrd] = n;
 				return;
 			}
 			default:
@@ -1054,7 +1704,8 @@ public final class Cpu {
 		}
 	}
 	
-	private final void execFunction3 (final int isn) {
+	private final void execFunction3 (final Decoded d) {
+        final int isn = d.isn;
         final int rs = rs(isn);
         final int rt = rt(isn);
         //final int rd = rd(isn);
@@ -1069,7 +1720,7 @@ public final class Cpu {
                 int size = msbd + 1;
                 int lsb  = (isn >>> 6) & 0x1F ; // pos
                 int result = (rsValue >>> lsb) & ((1 << size) - 1);
-                register[rt] = result;
+                register[d.wrt] = result;
                 log.println("EXT = FIXME !");
                 return;
             }
@@ -1091,7 +1742,7 @@ public final class Cpu {
                     srcField = srcField >>> 1;
                 }
     
-                register[rt] = rtValue;
+                register[d.wrt] = rtValue;
                 log.println("INS = FIXME !");
                 return;
                }
@@ -1107,13 +1758,14 @@ public final class Cpu {
     }
 	
 	/** execute system coprocessor instruction */
-	private final void execCpRs (final int isn) {
-		final int rs = rs(isn);
+	private final void execCpRs (final Decoded d) {
+		final int isn = d.isn;
+		final int rs = d.rs;
 		// should check if cp0 enabled/kernel mode?
 		
 		switch (rs) {
 			case CP_RS_MFC0:
-				execCpMoveFrom(isn);
+				execCpMoveFrom(d);
 				return;
 			case CP_RS_MTC0:
 				execCpMoveTo(isn);
@@ -1123,10 +1775,9 @@ public final class Cpu {
 		}
 	}
 	
-	private final void execCpMoveFrom (final int isn) {
-		final int rt = rt(isn);
-		final int rd = rd(isn);
-		final int sel = sel(isn);
+	private final void execCpMoveFrom (final Decoded d) {
+		final int rd = d.rd;
+		final int sel = sel(d.isn);
 		final int cpr = cprIndex(rd, sel);
 		
 		switch (cpr) {
@@ -1153,7 +1804,7 @@ public final class Cpu {
 				throw new RuntimeException("move from unknown cp reg " + cpRegName(rd, sel));
 		}
 		
-		register[rt] = cpRegister[cpr];
+		register[d.wrt] = cpRegister[cpr];
 		return;
 	}
 	
@@ -1181,7 +1832,7 @@ public final class Cpu {
 				memory.setAsid(getCpValue(CPR_ENTRYHI_ASID));
 				return;
 			case CPR_PAGEMASK:
-				cpRegister[cpr] = newValue & 0x00ff_f000;
+				cpRegister[cpr] = pageMask(newValue >>> 13) << 13;
 				return;
 			case CPR_CONTEXT:
 			case CPR_WIRED:
@@ -1207,6 +1858,8 @@ public final class Cpu {
 			case CPR_COMPARE:
 				cpRegister[cpr] = newValue;
 				compare = (newValue&ZX_INT_MASK) << 1;
+				// burst might run past the new compare cycle
+				endBurst();
 				log.println("set compare " + newValue + " (cycles to go: " + (compare - cycle) + ")");
 				return;
 			case CPR_EPC:
@@ -1266,6 +1919,9 @@ public final class Cpu {
 			//log.info("interrupts " + (interruptsEnabled ? "enabled" : "disabled") + " in " + calls.callString());
 		}
 		this.interruptsEnabled = interruptsEnabled;
+		if (interruptsEnabled && exceptionPending) {
+			endBurst();
+		}
 	}
 	
 	private final void execCpFunction (final int isn) {
@@ -1289,25 +1945,11 @@ public final class Cpu {
 				return;
 			}
 			case CP_FN_WAIT:
-				// no idea...
-				synchronized (this) {
-					while (exceptions.size() == 0) {
-						try {
-							log.println("waiting...");
-							stats.waitCount++;
-							long t = System.nanoTime();
-							wait();
-							t = System.nanoTime() - t;
-							stats.waitTimeNs += t;
-							if (stats.waitCount > 10) {
-								throw new RuntimeException("wait count exceeded");
-							}
-							log.println("continuing after " + ((t*1.0)/CpuUtil.NS_IN_S) + " seconds");
-						} catch (InterruptedException e) {
-							throw new RuntimeException(e);
-							//							log.println("interrupted in wait...");
-						}
-					}
+				// stop the burst, run (long) skips to the next event and the
+				// blocking run () idles until there is a pending exception
+				if (!exceptionPending) {
+					waiting = true;
+					endBurst();
 				}
 				return;
 			case CP_FN_ERET: {
@@ -1322,8 +1964,9 @@ public final class Cpu {
 				register[REG_LLBIT] = 0;
 				execException = false;
 				statusUpdated();
-				synchronized (this) {
-					exceptionPending = exceptions.size() > 0;
+				if (!exceptions.isEmpty()) {
+					exceptionPending = true;
+					endBurst();
 				}
 				return;
 			}
@@ -1332,11 +1975,40 @@ public final class Cpu {
 		}
 	}
 	
+	/** next random tlb entry index */
+	private int random () {
+		long x = randomState;
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		randomState = x;
+		final int i = (int) (x >>> 32) & 0xf;
+		return journal != null ? (int) journal.value(Journal.RANDOM, i) : i;
+	}
+	
+	/**
+	 * the page mask as the 4kc tlb holds it: mask bits are only implemented in
+	 * pairs from the 4k page up to 16m, anything else is dropped
+	 */
+	private static int pageMask (final int mask) {
+		int m = 0;
+		while (m < 12 && ((mask >>> m) & 3) == 3) {
+			m += 2;
+		}
+		return (1 << m) - 1;
+	}
+	
 	private void updateEntry (final int i) {
-		log.println("update entry " + i + " in " + symbols.getNameAddrOffset(pc));
+		if (log.isLoggable(0)) {
+			log.println(0, "update entry " + i + " in " + symbols.getNameAddrOffset(pc));
+		}
 		
 		final Entry e = memory.getEntry(i);
-		e.pageMask = getCpValue(CPR_PAGEMASK_MASK);
+		// clean the mask first, addEntry rejects an invalid one and the entry
+		// must not be left unlinked
+		final int mask = pageMask(getCpValue(CPR_PAGEMASK_MASK));
+		memory.removeEntry(i);
+		e.pageMask = mask;
 		e.virtualPageNumber2 = getCpValue(CPR_ENTRYHI_VPN2);
 		e.addressSpaceId = getCpValue(CPR_ENTRYHI_ASID);
 		e.global = getCpValueBoolean(CPR_ENTRYLO0_GLOBAL) && getCpValueBoolean(CPR_ENTRYLO1_GLOBAL);
@@ -1348,17 +2020,84 @@ public final class Cpu {
 		e.data[1].physicalFrameNumber = getCpValue(CPR_ENTRYLO1_PFN);
 		e.data[1].dirty = getCpValueBoolean(CPR_ENTRYLO1_DIRTY);
 		e.data[1].valid = getCpValueBoolean(CPR_ENTRYLO1_VALID);
+		memory.addEntry(i);
 		
-		log.println("updated tlb[" + i + "]=" + e);
-		
-		if (e.pageMask != 0) {
-			throw new RuntimeException("non zero page mask");
+		if (log.isLoggable(0)) {
+			log.println(0, "updated tlb[" + i + "]=" + e);
+		}
+	}
+	
+	/**
+	 * write registers, cp0, pending exceptions, fpu and tlb state (but not ram
+	 * or devices). the cpu must not be running.
+	 */
+	public void saveState (final DataOutput out) throws IOException {
+		for (int n = 0; n < register.length; n++) {
+			out.writeInt(register[n]);
 		}
+		for (int n = 0; n < cpRegister.length; n++) {
+			out.writeInt(cpRegister[n]);
+		}
+		out.writeInt(pc);
+		out.writeInt(pc2);
+		out.writeInt(pc3);
+		out.writeLong(cycle);
+		out.writeLong(compare);
+		out.writeLong(scheduler.getCyclesPerSecond());
+		out.writeBoolean(execException);
+		out.writeBoolean(waiting);
+		out.writeBoolean(deterministic);
+		out.writeLong(randomState);
+		final CpuExceptionParams[] eps = exceptions.toArray(new CpuExceptionParams[0]);
+		out.writeInt(eps.length);
+		for (CpuExceptionParams ep : eps) {
+			out.writeInt(ep.excode);
+			out.writeInt(ep.interrupt);
+			out.writeInt(ep.irq);
+			out.writeInt(ep.vaddr);
+			out.writeBoolean(ep.tlbRefill);
+		}
+		fpu.saveState(out);
+		memory.saveState(out);
+	}
+	
+	/** read state written by saveState, the cpu must not be running */
+	public void loadState (final DataInput in) throws IOException {
+		for (int n = 0; n < register.length; n++) {
+			register[n] = in.readInt();
+		}
+		for (int n = 0; n < cpRegister.length; n++) {
+			cpRegister[n] = in.readInt();
+		}
+		pc = in.readInt();
+		pc2 = in.readInt();
+		pc3 = in.readInt();
+		cycle = in.readLong();
+		burstCycle = cycle;
+		compare = in.readLong();
+		scheduler.setCyclesPerSecond(in.readLong());
+		execException = in.readBoolean();
+		waiting = in.readBoolean();
+		deterministic = in.readBoolean();
+		randomState = in.readLong();
+		exceptions.clear();
+		exceptionCount.set(0);
+		for (int i = 0; i < pendingInterrupts.length(); i++) {
+			pendingInterrupts.set(i, 0);
+		}
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			queueException(new CpuExceptionParams(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readBoolean()));
+		}
+		exceptionPending = count > 0;
+		statusUpdated();
+		fpu.loadState(in);
+		memory.loadState(in);
 	}
 	
 	public void panic () {
 		log.println("panic in cycle " + cycle);
-		execException(new CpuExceptionParams(CpuConstants.EX_BREAKPOINT));
+		execException(CpuConstants.EX_BREAKPOINT);
 	}
 	
 }
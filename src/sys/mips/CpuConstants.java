@@ -378,6 +378,8 @@ public final class CpuConstants {
 	public static final int REG_LO = 32;
 	public static final int REG_HI = 33;
 	public static final int REG_LLBIT = 34;
+	/** destination of writes to r0, never read */
+	public static final int REG_DISCARD = 35;
 	
 	//
 	// floating point control registers and constants
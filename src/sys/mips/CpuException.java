@@ -1,16 +1,37 @@
 package sys.mips;
 
-/** internal exception */
+/**
+ * internal exception for synchronous cpu exceptions (address errors and tlb
+ * misses). there is one instance per cpu, used only on the thread running
+ * the cpu, that is refilled and rethrown each time (see Cpu.exception). it
+ * has no stack trace so throwing it doesn't allocate.
+ */
 public class CpuException extends RuntimeException {
 	
-	public final CpuExceptionParams ep;
-
-	public CpuException (CpuExceptionParams ep) {
-		this.ep = ep;
+	public int excode;
+	/** interrupt or -1 */
+	public int interrupt;
+	/** irq or -1 */
+	public int irq;
+	public int vaddr;
+	public boolean tlbRefill;
+	
+	public CpuException () {
+		super(null, null, false, false);
+	}
+	
+	/** set the parameters and return this */
+	final CpuException set (final int excode, final int interrupt, final int irq, final int vaddr, final boolean tlbRefill) {
+		this.excode = excode;
+		this.interrupt = interrupt;
+		this.irq = irq;
+		this.vaddr = vaddr;
+		this.tlbRefill = tlbRefill;
+		return this;
 	}
 	
 	@Override
 	public String toString () {
-		return "CpuException[" + ep + "]";
+		return "CpuException[ex=" + InstructionUtil.exceptionString(excode) + " int=" + interrupt + " irq=" + irq + " vaddr=" + Integer.toHexString(vaddr) + " refill=" + tlbRefill + "]";
 	}
 }
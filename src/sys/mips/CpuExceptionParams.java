@@ -3,42 +3,47 @@ package sys.mips;
 import sys.malta.MaltaUtil;
 
 /**
- * cpu exception parameters
+ * cpu exception parameters (for asynchronous exceptions). immutable, so a
+ * device can reuse one instance for each interrupt it raises.
  */
 public class CpuExceptionParams {
 	
 	public final int excode;
-	public final Integer interrupt;
-	public final Integer irq;
-	public final Integer vaddr;
-	public final Boolean tlbRefill;
+	/** interrupt or -1 */
+	public final int interrupt;
+	/** irq or -1 */
+	public final int irq;
+	/** virtual address (address and tlb errors only) */
+	public final int vaddr;
+	public final boolean tlbRefill;
 	
 	public CpuExceptionParams (int excode) {
-		this(excode, null, null, null, null);
+		this(excode, -1, -1, 0, false);
 	}
 	
 	/** hardware interrupt */
 	public CpuExceptionParams (int excode, int interrupt, int irq) {
-		this(excode, interrupt, irq, null, null);
+		this(excode, interrupt, irq, 0, false);
+		if (interrupt < 0 || interrupt >= 16) {
+			throw new RuntimeException("invalid interrupt " + interrupt);
+		}
+		if (irq < 0 || irq >= 16) {
+			throw new RuntimeException("invalid irq " + irq);
+		}
 	}
 	
 	/** virtual address error */
 	public CpuExceptionParams (int excode, int vaddr) {
-		this(excode, null, null, vaddr, null);
+		this(excode, -1, -1, vaddr, false);
 	}
 	
 	/** tlb error */
 	public CpuExceptionParams (int excode, int vaddr, boolean isTlbRefill) {
-		this(excode, null, null, vaddr, isTlbRefill);
+		this(excode, -1, -1, vaddr, isTlbRefill);
 	}
 	
-	private CpuExceptionParams (int excode, Integer interrupt, Integer irq, Integer vaddr, Boolean isTlbRefill) {
-		if (interrupt != null && (interrupt < 0 || interrupt >= 16)) {
-			throw new RuntimeException("invalid interrupt " + interrupt);
-		}
-		if (irq != null && (irq < 0 || irq >= 16)) {
-			throw new RuntimeException("invalid irq " + irq);
-		}
+	/** all fields, for restoring a snapshot */
+	CpuExceptionParams (int excode, int interrupt, int irq, int vaddr, boolean isTlbRefill) {
 		this.excode = excode;
 		this.interrupt = interrupt;
 		this.irq = irq;
@@ -49,10 +54,10 @@ public class CpuExceptionParams {
 	@Override
 	public String toString () {
 		String exs = InstructionUtil.exceptionString(excode);
-		String ints = interrupt != null ? " int=" + MaltaUtil.interruptString(interrupt) : "";
-		String irqs = irq != null ? " irq=" + MaltaUtil.irqString(irq) : "";
-		String vas = vaddr != null ? " vaddr=" + Integer.toHexString(vaddr) : "";
-		String tlbs = tlbRefill != null ? " refill=" + tlbRefill : "";
+		String ints = interrupt >= 0 ? " int=" + MaltaUtil.interruptString(interrupt) : "";
+		String irqs = irq >= 0 ? " irq=" + MaltaUtil.irqString(irq) : "";
+		String vas = vaddr != 0 ? " vaddr=" + Integer.toHexString(vaddr) : "";
+		String tlbs = tlbRefill ? " refill" : "";
 		return "CEP[ex=" + exs + ints + irqs + vas + tlbs + "]";
 	}
 }
@@ -1,7 +1,5 @@
 package sys.mips;
 
-import java.util.Random;
-
 /**
  * mips instruction/register decoding and encoding
  */
@@ -10,8 +8,6 @@ public final class CpuFunctions {
 	public static final long ZX_INT_MASK = 0xffff_ffffL;
 	public static final int ZX_SHORT_MASK = 0xffff;
 	
-	private static final Random RANDOM = new Random();
-
 	/** same as rs */
 	public static final int base (final int isn) {
 		return rs(isn);
@@ -166,11 +162,6 @@ public final class CpuFunctions {
 		return (vaddr >> 12) & 1;
 	}
 	
-	/** return random tlb entry */
-	public static final int random () {
-		return RANDOM.nextInt() & 0xf;
-	}
-	
 	private CpuFunctions () {
 		//
 	}
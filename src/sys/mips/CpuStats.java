@@ -1,6 +1,8 @@
 package sys.mips;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -11,11 +13,24 @@ public class CpuStats {
 	public final int[] exceptions = new int[32];
 	public final int[] irqs = new int[16];
 	public final int[] interrupts = new int[16];
+	/** interrupts not queued because the same irq was already pending, e.g. lost timer ticks */
+	public final AtomicIntegerArray coalescedIrqs = new AtomicIntegerArray(16);
+	/** interrupts without an irq not queued because they were already pending */
+	public final AtomicInteger coalescedInterrupts = new AtomicInteger();
+	/** exceptions not queued because the queue was full */
+	public final AtomicInteger droppedExceptions = new AtomicInteger();
 	public volatile long endTimeNs;
 	public volatile long startTimeNs;
+	/** time spent idle after a wait instruction */
 	public volatile long waitTimeNs;
 	public volatile int waitCount;
+	/** cycles skipped while idle */
+	public volatile long idleCycles;
 	public volatile int scSuccess, scFail;
+	/** instructions executed by the block tier */
+	public long blockIsns;
+	/** fused pairs executed by the block tier, indexed by Block.FUSE_* */
+	public final long[] fusions = new long[Block.FUSE_COUNT];
 	
 	public CpuStats () {
 		for (String name : InstructionSet.getInstance().getNameMap().keySet()) {
@@ -35,6 +50,22 @@ public class CpuStats {
 		return arrayString(interrupts, n -> MaltaUtil.interruptString(n));
 	}
 	
+	public String coalescedIrqsString () {
+		final int[] a = new int[coalescedIrqs.length()];
+		for (int n = 0; n < a.length; n++) {
+			a[n] = coalescedIrqs.get(n);
+		}
+		return arrayString(a, n -> MaltaUtil.irqString(n));
+	}
+	
+	public String fusionsString () {
+		Map<String, Long> m = new TreeMap<>();
+		for (int n = 1; n < fusions.length; n++) {
+			m.put(Block.FUSE_NAMES[n], fusions[n]);
+		}
+		return m.toString();
+	}
+	
 	private static String arrayString (int[] a, Function<Integer, String> f) {
 		Map<String, Integer> m = new TreeMap<>();
 		for (int n = 0; n < a.length; n++) {
@@ -0,0 +1,472 @@
+package sys.mips;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import sys.malta.MaltaUtil;
+import sys.malta.PIIX4;
+import sys.malta.UartUtil;
+
+import static sys.mips.CpuConstants.*;
+
+/**
+ * regression tests for the cpu, run with the endianness as the argument
+ */
+public class CpuTest {
+	
+	private static final int T0 = 8, T1 = 9, T2 = 10, T3 = 11, T4 = 12, T5 = 13, V0 = 2, T9 = 25;
+	private static final int BASE = 0x8000_1000;
+	private static final int ERET = 0x4200_0018;
+	private static final int TLBWI = 0x4200_0002;
+	private static final int WAIT = 0x4200_0020;
+	private static final int TLBWR = 0x4200_0006;
+	
+	public static void main (String[] args) {
+		final boolean le = args.length == 0 || !args[0].equals("be");
+		final CpuTest t = new CpuTest();
+		t.interruptAfterInstruction(le);
+		t.interruptInDelaySlot(le);
+		t.dirtyPagesWhileRunning(le);
+		t.faultPastRam(le);
+		t.invalidPageMask(le);
+		t.concurrentExceptions(le);
+		t.concurrentBulkCopies(le);
+		t.waitForTimer(le);
+		t.waitForInput(le);
+		t.exceptionOffCpuThread(le);
+		t.recordAndReplay(le);
+		t.deterministicRuns(le);
+		t.deviceTimeInBlock(le);
+		System.out.println("passed");
+	}
+	
+	private static int itype (int op, int rs, int rt, int imm) {
+		return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff);
+	}
+	
+	private static int mtc0 (int rt, int rd) {
+		return (0x10 << 26) | (4 << 21) | (rt << 16) | (rd << 11);
+	}
+	
+	private static void asEq (String name, long expected, long actual) {
+		if (expected != actual) {
+			throw new RuntimeException(name + ": expected " + expected + " actual " + actual);
+		}
+	}
+	
+	/** a cpu with an interrupt handler that just returns, interrupts enabled at BASE */
+	private static Cpu newCpu (final boolean le, final int... isns) {
+		final Cpu cpu = new Cpu(4 << 20, le);
+		final Memory m = cpu.getMemory();
+		m.storeWord(EXV_EXCEPTION, ERET);
+		m.storeWord(EXV_EXCEPTION + 4, 0);
+		// im2 and ie
+		final int[] start = { itype(0xd, 0, T1, 0x401), mtc0(T1, CPR_STATUS) };
+		int a = BASE;
+		for (int isn : start) {
+			m.storeWord(a, isn);
+			a += 4;
+		}
+		for (int isn : isns) {
+			m.storeWord(a, isn);
+			a += 4;
+		}
+		// uhi exit
+		for (int isn : new int[] { itype(9, 0, V0, 1), itype(9, 0, T9, 1), 0x4c }) {
+			m.storeWord(a, isn);
+			a += 4;
+		}
+		cpu.setPc(BASE);
+		return cpu;
+	}
+	
+	private static CpuExceptionParams interrupt () {
+		return new CpuExceptionParams(EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_UART0);
+	}
+	
+	/** an interrupt between bursts must not repeat the last instruction */
+	private void interruptAfterInstruction (final boolean le) {
+		final int[] isns = new int[1000];
+		for (int n = 0; n < isns.length; n++) {
+			isns[n] = itype(9, T0, T0, 1);
+		}
+		final Cpu cpu = newCpu(le, isns);
+		asEq("run", RunStatus.BUDGET.ordinal(), cpu.run(300).ordinal());
+		cpu.addException(interrupt());
+		asEq("exit", RunStatus.EXIT.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		asEq("increments", 1000, cpu.getRegister(T0));
+		asEq("interrupts", 1, cpu.getCpuStats().interrupts[MaltaUtil.INT_SOUTHBRIDGE]);
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** interrupts after a branch or in its delay slot must resume the branch */
+	private void interruptInDelaySlot (final boolean le) {
+		final Cpu cpu = newCpu(le,
+				itype(9, 0, T1, 500),
+				// loop: t0++, t1--, bne t1 loop, delay slot t2++
+				itype(9, T0, T0, 1), itype(9, T1, T1, -1), itype(5, T1, 0, -3), itype(9, T2, T2, 1));
+		int interrupts = 0;
+		RunStatus s;
+		while ((s = cpu.run(7)) == RunStatus.BUDGET && interrupts < 10000) {
+			cpu.addException(interrupt());
+			interrupts++;
+		}
+		asEq("exit", RunStatus.EXIT.ordinal(), s.ordinal());
+		asEq("increments", 500, cpu.getRegister(T0));
+		asEq("delay slot increments", 500, cpu.getRegister(T2));
+		asEq("interrupts", interrupts, cpu.getCpuStats().interrupts[MaltaUtil.INT_SOUTHBRIDGE]);
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** a kseg0 load past the end of ram faults with the address */
+	private void faultPastRam (final boolean le) {
+		final Cpu cpu = newCpu(le, itype(0xf, 0, T1, 0x8080), itype(0x23, T1, T0, 0x10));
+		asEq("fault", RunStatus.FAULT.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		final String msg = cpu.getFault().getMessage();
+		if (!msg.contains("addr: ") || !msg.contains("80800010")) {
+			throw new RuntimeException("no fault address: " + msg);
+		}
+		asEq("address", 0x8080_0010, MemoryUtil.toAddr(cpu.getFault()));
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** a page mask the tlb does not support is cleaned rather than faulting */
+	private void invalidPageMask (final boolean le) {
+		final Cpu cpu = newCpu(le,
+				// mask bits 13 and 15 are not a whole pair
+				itype(0xd, 0, T1, 0xa000), mtc0(T1, CPR_PAGEMASK), TLBWI,
+				itype(0xd, 0, T2, 1), mtc0(T2, CPR_INDEX), itype(0xf, 0, T1, 0x40), mtc0(T1, CPR_ENTRYHI),
+				// bits 13 to 16 are the 64k page, bit 19 is not contiguous
+				itype(0xf, 0, T1, 0x9), itype(0xd, T1, T1, 0xe000), mtc0(T1, CPR_PAGEMASK), TLBWI);
+		asEq("exit", RunStatus.EXIT.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		asEq("mask 0", 0, cpu.getMemory().getEntry(0).pageMask);
+		asEq("mask 1", 0xf, cpu.getMemory().getEntry(1).pageMask);
+		asEq("register", 0x1e000, cpu.getCpRegisters()[CPR_PAGEMASK]);
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** exceptions added by several threads are each queued, coalesced or dropped once */
+	private void concurrentExceptions (final boolean le) {
+		final Cpu cpu = newCpu(le);
+		final Thread[] threads = new Thread[4];
+		for (int n = 0; n < threads.length; n++) {
+			threads[n] = new Thread(() -> {
+				// more distinct interrupts than the queue holds
+				for (int i = 0; i < 1000; i++) {
+					cpu.addException(new CpuExceptionParams(EX_INTERRUPT, (i >>> 4) & 7, i & 15));
+				}
+			});
+			threads[n].start();
+		}
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		final CpuStats stats = cpu.getCpuStats();
+		int coalesced = 0;
+		for (int n = 0; n < stats.coalescedIrqs.length(); n++) {
+			coalesced += stats.coalescedIrqs.get(n);
+		}
+		asEq("not queued", threads.length * 1000 - 64, coalesced + stats.droppedExceptions.get());
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** bulk copies on different threads don't disturb each other */
+	private void concurrentBulkCopies (final boolean le) {
+		final Cpu cpu = newCpu(le);
+		final Memory m = cpu.getMemory();
+		final RuntimeException[] error = new RuntimeException[1];
+		final Thread[] threads = new Thread[2];
+		for (int n = 0; n < threads.length; n++) {
+			// unaligned and crossing pages
+			final int addr = 0x8010_0003 + n * 0x10_0000;
+			final byte value = (byte) (n + 1);
+			threads[n] = new Thread(() -> {
+				final byte[] src = new byte[0x2345];
+				final byte[] dst = new byte[src.length];
+				Arrays.fill(src, (byte) (value + 2));
+				for (int i = 0; i < 3000; i++) {
+					m.fill(addr, value, src.length);
+					m.copyOut(addr, dst, 0, dst.length);
+					for (byte b : dst) {
+						if (b != value) {
+							error[0] = new RuntimeException("fill at " + Integer.toHexString(addr) + " read " + b);
+							return;
+						}
+					}
+					m.copyIn(addr, src, 0, src.length);
+					m.copyOut(addr, dst, 0, dst.length);
+					if (!Arrays.equals(src, dst)) {
+						error[0] = new RuntimeException("copy at " + Integer.toHexString(addr));
+						return;
+					}
+				}
+			});
+			threads[n].start();
+		}
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (error[0] != null) {
+			throw error[0];
+		}
+		asEq("before", 0, m.loadByte(0x8010_0002));
+		asEq("after", 0, m.loadByte(0x8010_0003 + 0x2345));
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** a plain loop of run calls gets past a wait for a device event */
+	private void waitForTimer (final boolean le) {
+		final Cpu cpu = newCpu(le, WAIT, itype(9, T0, T0, 1));
+		cpu.getScheduler().schedule(() -> cpu.addException(interrupt()), 100_000);
+		RunStatus s;
+		int runs = 0;
+		while ((s = cpu.run(1000)) == RunStatus.BUDGET && runs < 1000) {
+			runs++;
+		}
+		asEq("exit", RunStatus.EXIT.ordinal(), s.ordinal());
+		asEq("increments", 1, cpu.getRegister(T0));
+		asEq("interrupts", 1, cpu.getCpuStats().interrupts[MaltaUtil.INT_SOUTHBRIDGE]);
+		if (cpu.getCycle() < 100_000) {
+			throw new RuntimeException("cycle " + cpu.getCycle());
+		}
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** run returns waiting if only a host input can end the wait */
+	private void waitForInput (final boolean le) {
+		final Cpu cpu = newCpu(le, WAIT, itype(9, T0, T0, 1));
+		asEq("wait", RunStatus.WAITING.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		asEq("still waiting", RunStatus.WAITING.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		cpu.addException(interrupt());
+		asEq("exit", RunStatus.EXIT.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		asEq("increments", 1, cpu.getRegister(T0));
+		cpu.getExecutor().shutdown();
+	}
+	
+	/** a tlb miss on a thread not running the cpu doesn't reuse the cpu's exception */
+	private void exceptionOffCpuThread (final boolean le) {
+		final Cpu cpu = newCpu(le);
+		final CpuException e1 = tlbMiss(cpu.getMemory(), 0x1000);
+		final CpuException e2 = tlbMiss(cpu.getMemory(), 0x2000);
+		if (e1 == e2) {
+			throw new RuntimeException("exception reused off the cpu thread");
+		}
+		asEq("vaddr", 0x1000, e1.vaddr);
+		asEq("excode", EX_TLB_LOAD, e1.excode);
+		asEq("interrupt", -1, e1.interrupt);
+		asEq("irq", -1, e1.irq);
+		cpu.getExecutor().shutdown();
+	}
+	
+	private static CpuException tlbMiss (final Memory m, final int vaddr) {
+		try {
+			m.loadWord(vaddr);
+		} catch (CpuException e) {
+			return e;
+		}
+		throw new RuntimeException("no tlb miss at " + Integer.toHexString(vaddr));
+	}
+	
+	/**
+	 * wait (ended by a timer), write 8 tlb entries at random indexes, then
+	 * poll com1 until a byte arrives, counting the polls in t4
+	 */
+	private static Cpu newJournalCpu (final boolean le) {
+		final Cpu cpu = newCpu(le,
+				WAIT,
+				itype(0xd, 0, T0, 8),
+				// loop: entryhi += 0x2000, tlbwr, t0--
+				itype(9, T5, T5, 0x2000), mtc0(T5, CPR_ENTRYHI), TLBWR, itype(9, T0, T0, -1), itype(5, T0, 0, -5), 0,
+				itype(0xf, 0, T1, 0xb000), itype(0xd, T1, T1, PIIX4.M_COM1),
+				// poll: t4++, t2 = lsr & dr
+				itype(9, T4, T4, 1), itype(0x24, T1, T2, UartUtil.M_LSR), itype(0xc, T2, T2, UartUtil.LSR_DR), itype(4, T2, 0, -4), 0,
+				itype(0x24, T1, T3, UartUtil.M_RX_TX));
+		final CpuExceptionParams timer = new CpuExceptionParams(EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_TIMER);
+		cpu.getScheduler().scheduleAtFixedRate(() -> cpu.addException(timer), 5000, 5000);
+		return cpu;
+	}
+	
+	/** a run with host inputs replays to the same state */
+	private void recordAndReplay (final boolean le) {
+		try {
+			final File file = File.createTempFile("cputest", ".journal");
+			file.deleteOnExit();
+			
+			final Cpu cpu = newJournalCpu(le);
+			final Journal journal = Journal.record(file, cpu.getCycle());
+			cpu.setJournal(journal);
+			final Thread host = new Thread(() -> {
+				try {
+					Thread.sleep(20);
+					cpu.addException(interrupt());
+					Thread.sleep(20);
+					cpu.addInput(cpu.getMemory().getMalta().getPIIX4().getCom1(), 'Z');
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			host.start();
+			cpu.run();
+			host.join();
+			journal.close();
+			asEq("received", 'Z', cpu.getRegister(T3));
+			
+			final Cpu cpu2 = newJournalCpu(le);
+			final Journal journal2 = Journal.replay(file);
+			cpu2.setJournal(journal2);
+			cpu2.run();
+			if (!journal2.isReplayed()) {
+				throw new RuntimeException("journal not replayed");
+			}
+			assertSameState(cpu, cpu2);
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void assertSameState (final Cpu cpu, final Cpu cpu2) {
+		asEq("cycle", cpu.getCycle(), cpu2.getCycle());
+		asEq("pc", cpu.getPc(), cpu2.getPc());
+		for (int n = 0; n < 32; n++) {
+			asEq("register " + n, cpu.getRegister(n), cpu2.getRegister(n));
+		}
+		for (int n = 0; n < 16; n++) {
+			asEq("tlb " + n, cpu.getMemory().getEntry(n).virtualPageNumber2, cpu2.getMemory().getEntry(n).virtualPageNumber2);
+		}
+		final int[] i1 = cpu.getCpuStats().interrupts, i2 = cpu2.getCpuStats().interrupts;
+		for (int n = 0; n < i1.length; n++) {
+			asEq("interrupts " + n, i1[n], i2[n]);
+		}
+	}
+	
+	/**
+	 * run a deterministic program with timers, a wait, tlbwr and a read of
+	 * the rtc, return the trace
+	 */
+	private static byte[] runDeterministic (final Cpu cpu, final long seed) {
+		cpu.setDeterministic(seed);
+		cpu.setTracing(true);
+		cpu.run();
+		cpu.getExecutor().shutdown();
+		try {
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			cpu.getTrace().write(new DataOutputStream(bos));
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static Cpu newDeterministicCpu (final boolean le) {
+		final Cpu cpu = newCpu(le,
+				WAIT,
+				itype(0xd, 0, T0, 8),
+				// loop: entryhi += 0x2000, tlbwr, t0--
+				itype(9, T5, T5, 0x2000), mtc0(T5, CPR_ENTRYHI), TLBWR, itype(9, T0, T0, -1), itype(5, T0, 0, -5), 0,
+				// read the rtc seconds
+				itype(0xf, 0, T1, 0xb000), itype(0x28, T1, 0, PIIX4.M_RTC), itype(0x24, T1, T3, PIIX4.M_RTC + 1),
+				// count to 3000 while the timer interrupts
+				itype(9, T4, T4, 1), itype(0xd, 0, T2, 3000), itype(5, T4, T2, -3), 0);
+		final CpuExceptionParams timer = new CpuExceptionParams(EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_TIMER);
+		cpu.getScheduler().scheduleAtFixedRate(() -> cpu.addException(timer), 5000, 1234);
+		return cpu;
+	}
+	
+	/** two deterministic runs with the same seed have identical traces */
+	private void deterministicRuns (final boolean le) {
+		final Cpu cpu = newDeterministicCpu(le);
+		final Cpu cpu2 = newDeterministicCpu(le);
+		final byte[] trace = runDeterministic(cpu, 42);
+		final byte[] trace2 = runDeterministic(cpu2, 42);
+		if (cpu.getTrace().getCount() < 10000 || cpu.getCpuStats().interrupts[MaltaUtil.INT_SOUTHBRIDGE] == 0) {
+			throw new RuntimeException("trace " + cpu.getTrace().getCount() + " interrupts " + cpu.getCpuStats().interruptsString());
+		}
+		if (!Arrays.equals(trace, trace2)) {
+			throw new RuntimeException("traces differ");
+		}
+		assertSameState(cpu, cpu2);
+		// the seed picks the tlb random indexes
+		final Cpu cpu3 = newDeterministicCpu(le);
+		runDeterministic(cpu3, 43);
+		int same = 0;
+		for (int n = 0; n < 16; n++) {
+			if (cpu.getMemory().getEntry(n).virtualPageNumber2 == cpu3.getMemory().getEntry(n).virtualPageNumber2) {
+				same++;
+			}
+		}
+		if (same == 16) {
+			throw new RuntimeException("seed has no effect");
+		}
+	}
+	
+	/** program the pit from a loop, return the cycle of the timer event */
+	private static long pitEventCycle (final boolean le, final boolean traced) {
+		final Cpu cpu = newCpu(le,
+				itype(0xf, 0, T1, 0xb000), itype(9, 0, T2, 0x34), itype(9, 0, T0, 100), itype(9, 0, T3, 0xff),
+				// loop: write the tcw and counter 0 after a couple of instructions
+				itype(9, T4, T4, 1), itype(9, T4, T4, 1),
+				itype(0x28, T1, T2, PIIX4.M_PIT + 3), itype(0x28, T1, T3, PIIX4.M_PIT), itype(0x28, T1, T3, PIIX4.M_PIT),
+				itype(9, T0, T0, -1), itype(5, T0, 0, -7), 0);
+		// tracing keeps to the interpreter
+		cpu.setTracing(traced);
+		asEq("run", RunStatus.EXIT.ordinal(), cpu.run(100000).ordinal());
+		cpu.getExecutor().shutdown();
+		if (!traced && cpu.getCpuStats().blockIsns == 0) {
+			throw new RuntimeException("no block isns");
+		}
+		return cpu.getScheduler().getNextCycle();
+	}
+	
+	/** a device written from inside a block sees the same cycle as from the interpreter */
+	private void deviceTimeInBlock (final boolean le) {
+		asEq("pit event", pitEventCycle(le, true), pitEventCycle(le, false));
+	}
+	
+	/** dirty pages taken by another thread while the cpu stores are not lost */
+	private void dirtyPagesWhileRunning (final boolean le) {
+		final Cpu cpu = newCpu(le,
+				itype(0xf, 0, T1, 0x8010), itype(9, 0, T0, 512),
+				// loop: store to the page, t1 += 4096, t0--
+				itype(0x2b, T1, T0, 0), itype(9, T0, T0, -1), itype(5, T0, 0, -3), itype(9, T1, T1, 0x1000));
+		final Memory m = cpu.getMemory();
+		m.setDirtyTracking(true);
+		final long[] all = new long[m.takeDirtyPages().length];
+		final AtomicBoolean done = new AtomicBoolean();
+		final Thread t = new Thread(() -> {
+			while (!done.get()) {
+				final long[] d = m.takeDirtyPages();
+				for (int n = 0; n < all.length; n++) {
+					all[n] |= d[n];
+				}
+			}
+		});
+		t.start();
+		asEq("exit", RunStatus.EXIT.ordinal(), cpu.run(Long.MAX_VALUE).ordinal());
+		done.set(true);
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		final long[] d = m.takeDirtyPages();
+		for (int p = 0x100; p < 0x300; p++) {
+			if (((all[p >>> 6] | d[p >>> 6]) & (1L << p)) == 0) {
+				throw new RuntimeException("lost dirty page " + p);
+			}
+		}
+		cpu.getExecutor().shutdown();
+	}
+	
+}
@@ -1,10 +1,14 @@
 package sys.mips;
 
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.util.*;
 
 import sys.elf.*;
+import sys.util.Symbol;
 import sys.util.Symbols;
 
 import static sys.mips.MemoryUtil.*;
@@ -17,6 +21,10 @@ import static sys.mips.InstructionUtil.*;
 public class CpuUtil {
 	
 	public static final long NS_IN_S = 1000000000;
+	/** snapshot file magic ("SNAP") */
+	public static final int SNAPSHOT_MAGIC = 0x534e4150;
+	/** increment when the layout of any saveState method changes */
+	public static final int SNAPSHOT_VERSION = 4;
 	
 	/** load elf file into cpu, set entry point, return max address */
 	public static Cpu loadElf (final FileChannel chan, final int memsize, final int[] top) throws Exception {
@@ -44,6 +52,142 @@ public class CpuUtil {
 		
 		System.out.println("top=" + Integer.toHexString(top[0]));
 		
+		loadSymbols(elf, sym);
+		
+		System.out.println("symbols=" + sym);
+		System.out.println("entry=" + sym.getNameOffset(elf.header.entryAddress));
+		
+		cpu.setPc(elf.header.entryAddress);
+		
+		return cpu;
+	}
+	
+	/**
+	 * sync memory mapped ram and write the cpu state to the file, the cpu must
+	 * not be running
+	 */
+	public static void saveCheckpoint (final Cpu cpu, final File stateFile) throws IOException {
+		cpu.getMemory().sync();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile)))) {
+			out.writeBoolean(cpu.isLittleEndian());
+			out.writeInt(cpu.getMemory().getSize());
+			cpu.saveState(out);
+		}
+	}
+	
+	/** map the ram file and create a cpu with the state written by saveCheckpoint */
+	public static Cpu loadCheckpoint (final File ramFile, final File stateFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+			final boolean littleEndian = in.readBoolean();
+			final int size = in.readInt();
+			final Cpu cpu = new Cpu(MemoryUtil.mapRam(ramFile, size), littleEndian);
+			cpu.loadState(in);
+			return cpu;
+		}
+	}
+	
+	/**
+	 * write a snapshot of the whole machine: header, ram, cpu state and device
+	 * state. the cpu must not be running.
+	 */
+	public static void saveSnapshot (final Cpu cpu, final File file) throws IOException {
+		final Memory mem = cpu.getMemory();
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			final FileChannel chan = fos.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(13);
+			header.putInt(SNAPSHOT_MAGIC);
+			header.putInt(SNAPSHOT_VERSION);
+			header.put((byte) (cpu.isLittleEndian() ? 1 : 0));
+			header.putInt(mem.getSize());
+			header.flip();
+			writeFully(chan, header);
+			writeFully(chan, mem.getData());
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(chan)));
+			cpu.saveState(out);
+			mem.getMalta().saveState(out);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * create a cpu from a snapshot written by saveSnapshot, device timers are
+	 * re-armed with their remaining delay
+	 */
+	public static Cpu loadSnapshot (final File file) throws IOException {
+		try (FileInputStream fis = new FileInputStream(file)) {
+			final FileChannel chan = fis.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(13);
+			readFully(chan, header);
+			header.flip();
+			final int magic = header.getInt();
+			final int version = header.getInt();
+			if (magic != SNAPSHOT_MAGIC) {
+				throw new IOException("not a snapshot: " + Integer.toHexString(magic));
+			}
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("unsupported snapshot version " + version);
+			}
+			final boolean littleEndian = header.get() != 0;
+			final ByteBuffer ram = ByteBuffer.allocateDirect(header.getInt());
+			readFully(chan, ram);
+			ram.clear();
+			final Cpu cpu = new Cpu(ram, littleEndian);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(chan)));
+			cpu.loadState(in);
+			cpu.getMemory().getMalta().loadState(in);
+			return cpu;
+		}
+	}
+	
+	/**
+	 * fork a stopped cpu into n children that share its ram copy on write. the
+	 * ram is written to the file once and each child maps it privately, so
+	 * unmodified pages are shared and a page is copied on the first store to
+	 * it. each child has its own devices and executor. the file must not be
+	 * the one backing the ram of the cpu.
+	 */
+	public static Cpu[] fork (final Cpu cpu, final File ramFile, final int n) throws IOException {
+		final Memory mem = cpu.getMemory();
+		try (FileOutputStream fos = new FileOutputStream(ramFile)) {
+			writeFully(fos.getChannel(), mem.getData());
+		}
+		
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bos);
+		cpu.saveState(out);
+		mem.getMalta().saveState(out);
+		final byte[] state = bos.toByteArray();
+		
+		final Cpu[] children = new Cpu[n];
+		for (int i = 0; i < n; i++) {
+			final Cpu child = new Cpu(MemoryUtil.mapRamPrivate(ramFile, mem.getSize()), cpu.isLittleEndian());
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+			child.loadState(in);
+			child.getMemory().getMalta().loadState(in);
+			for (Symbol s : cpu.getSymbols().getSymbols()) {
+				child.getSymbols().put(s.addr, s.name, s.size);
+			}
+			children[i] = child;
+		}
+		return children;
+	}
+	
+	private static void writeFully (final FileChannel chan, final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			chan.write(buf);
+		}
+	}
+	
+	private static void readFully (final FileChannel chan, final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (chan.read(buf) < 0) {
+				throw new EOFException("truncated snapshot");
+			}
+		}
+	}
+	
+	/** add the symbols of the elf file to the symbol table */
+	public static void loadSymbols (final ELF32 elf, final Symbols sym) {
 		// bit of a hack, put the non global symbols in first, then let the global ones overwrite them
 		for (ELF32Symbol symbol : elf.symbols) {
 			if (symbol.getBind() != ELF32Symbol.STB_GLOBAL) {
@@ -55,13 +199,6 @@ public class CpuUtil {
 				sym.put(symbol.value, symbol.name);
 			}
 		}
-		
-		System.out.println("symbols=" + sym);
-		System.out.println("entry=" + sym.getNameOffset(elf.header.entryAddress));
-		
-		cpu.setPc(elf.header.entryAddress);
-		
-		return cpu;
 	}
 	
 	/**
@@ -0,0 +1,47 @@
+package sys.mips;
+
+import static sys.mips.CpuConstants.REG_DISCARD;
+import static sys.mips.CpuFunctions.*;
+
+/**
+ * predecoded instruction, the fields are extracted once when the instruction
+ * is first fetched from a page (see CodeCache)
+ */
+public final class Decoded {
+	
+	/** the instruction word */
+	public final int isn;
+	public final int op;
+	public final int rs;
+	public final int rt;
+	public final int rd;
+	public final int sa;
+	public final int fn;
+	/** rt as a destination, writes to r0 go to REG_DISCARD */
+	public final int wrt;
+	/** rd as a destination, writes to r0 go to REG_DISCARD */
+	public final int wrd;
+	/** sign extended immediate */
+	public final int simm;
+	/** zero extended immediate */
+	public final int imm;
+	
+	public Decoded (final int isn) {
+		this.isn = isn;
+		this.op = op(isn);
+		this.rs = rs(isn);
+		this.rt = rt(isn);
+		this.rd = rd(isn);
+		this.sa = sa(isn);
+		this.fn = fn(isn);
+		this.wrt = rt != 0 ? rt : REG_DISCARD;
+		this.wrd = rd != 0 ? rd : REG_DISCARD;
+		this.simm = simm(isn);
+		this.imm = imm(isn);
+	}
+	
+	@Override
+	public String toString () {
+		return String.format("Decoded[%08x]", isn);
+	}
+}
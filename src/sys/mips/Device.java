@@ -1,5 +1,7 @@
 package sys.mips;
 
+import java.io.*;
+
 /**
  * device interface. all addresses are physical (so you can look them up in the
  * symbol table) and need to be translated to offsets by the device itself.
@@ -14,6 +16,10 @@ public abstract class Device {
 		this.baseAddr = baseAddr;
 	}
 	
+	public int getBaseAddr () {
+		return baseAddr;
+	}
+	
 	public int offset (int addr) {
 		return addr - baseAddr;
 	}
@@ -58,6 +64,21 @@ public abstract class Device {
 		throw rx(addr);
 	}
 	
+	/** host input queued by Cpu.addInput, called on the cpu thread */
+	public void input (final int value) {
+		throw rx(baseAddr);
+	}
+	
+	/** write device registers for a snapshot */
+	public void saveState (final DataOutput out) throws IOException {
+		//
+	}
+	
+	/** read device registers written by saveState and re-arm any timers */
+	public void loadState (final DataInput in) throws IOException {
+		//
+	}
+	
 	public void fire (int irq) {
 		parent.fire(irq);
 	}
@@ -1,5 +1,13 @@
 package sys.mips;
 
 public class ExitException extends RuntimeException {
-
+	
+	/** exit code passed by the program */
+	public final int code;
+	
+	public ExitException (final int code) {
+		super(null, null, false, false);
+		this.code = code;
+	}
+	
 }
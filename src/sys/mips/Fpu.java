@@ -1,5 +1,9 @@
 package sys.mips;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import static sys.mips.CpuConstants.*;
 import static sys.mips.CpuFunctions.*;
 import static sys.mips.InstructionUtil.*;
@@ -24,6 +28,25 @@ public class Fpu {
 		return fpReg[n];
 	}
 	
+	public void saveState (final DataOutput out) throws IOException {
+		for (int n = 0; n < fpReg.length; n++) {
+			out.writeInt(fpReg[n]);
+		}
+		for (int n = 0; n < fpControlReg.length; n++) {
+			out.writeInt(fpControlReg[n]);
+		}
+	}
+	
+	public void loadState (final DataInput in) throws IOException {
+		for (int n = 0; n < fpReg.length; n++) {
+			fpReg[n] = in.readInt();
+		}
+		for (int n = 0; n < fpControlReg.length; n++) {
+			fpControlReg[n] = in.readInt();
+		}
+		roundingMode = FpRound.getInstance(fpControlReg[FPCR_FCSR]);
+	}
+	
 	public final void setFpRegister (int n, int value) {
 		fpReg[n] = value;
 	}
@@ -36,14 +59,16 @@ public class Fpu {
 		return fpControlReg;
 	}
 	
-	public final void execFpuRs (final int isn) {
-		final int rs = rs(isn);
-		final int rt = rt(isn);
-		final int fs = fs(isn);
+	public final void execFpuRs (final Decoded d) {
+		final int isn = d.isn;
+		final int rs = d.rs;
+		final int rt = d.rt;
+		// same as rd
+		final int fs = d.rd;
 		
 		switch (rs) {
 			case FP_RS_MFC1:
-				cpu.setRegister(rt, fpReg[fs]);
+				cpu.setRegister(d.wrt, fpReg[fs]);
 				return;
 				
 			case FP_RS_MTC1:
@@ -51,11 +76,11 @@ public class Fpu {
 				return;
 				
 			case FP_RS_S:
-				execFpuFn(isn, FpFormat.SINGLE);
+				execFpuFn(d, FpFormat.SINGLE);
 				return;
 				
 			case FP_RS_D:
-				execFpuFn(isn, FpFormat.DOUBLE);
+				execFpuFn(d, FpFormat.DOUBLE);
 				return;
 				
 			case FP_RS_W:
@@ -71,7 +96,7 @@ public class Fpu {
 				return;
 				
 			case FP_RS_CFC1:
-				execFpuCopyFrom(isn);
+				execFpuCopyFrom(d);
 				return;
 				
 			case FP_RS_CTC1:
@@ -84,15 +109,14 @@ public class Fpu {
 		
 	}
 	
-	private final void execFpuCopyFrom (final int isn) {
-		final int rt = rt(isn);
-		final int fs = fs(isn);
+	private final void execFpuCopyFrom (final Decoded d) {
+		final int fs = d.rd;
 		
 		switch (fs) {
 			case FPCR_FCSR:
 			case FPCR_FCCR:
 			case FPCR_FIR:
-				cpu.setRegister(rt, fpControlReg[fs]);
+				cpu.setRegister(d.wrt, fpControlReg[fs]);
 				return;
 				
 			default:
@@ -119,12 +143,14 @@ public class Fpu {
 		roundingMode = FpRound.getInstance(fpControlReg[FPCR_FCSR]);
 	}
 	
-	private final void execFpuFn (final int isn, final FpFormat fmt) {
+	private final void execFpuFn (final Decoded d, final FpFormat fmt) {
 		final int[] fpReg = this.fpReg;
-		final int fs = fs(isn);
-		final int ft = ft(isn);
-		final int fd = fd(isn);
-		final int fn = fn(isn);
+		final int isn = d.isn;
+		// same as rd, rt and sa
+		final int fs = d.rd;
+		final int ft = d.rt;
+		final int fd = d.sa;
+		final int fn = d.fn;
 		
 		switch (fn) {
 			case FP_FN_ADD:
@@ -0,0 +1,281 @@
+package sys.mips;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * binary journal of the nondeterministic inputs of a run, so it can be
+ * replayed exactly (e.g. under tracing). values read by the cpu thread (the
+ * clock, the tlb random index and cycles spent idle) are replayed in order,
+ * host inputs (device input and exceptions added by other threads) are
+ * replayed at the cycle they arrived. recording and replay must start from
+ * the same state, e.g. boot or the same snapshot.
+ */
+public final class Journal implements Closeable {
+	
+	/** a host input, either an exception or a value for the device at addr */
+	public static final class Input {
+		
+		final CpuExceptionParams ep;
+		final int addr;
+		final int value;
+		long cycle;
+		
+		Input (final CpuExceptionParams ep) {
+			this.ep = ep;
+			this.addr = 0;
+			this.value = 0;
+		}
+		
+		Input (final int addr, final int value) {
+			this.ep = null;
+			this.addr = addr;
+			this.value = value;
+		}
+		
+		@Override
+		public String toString () {
+			return ep != null ? "Input[" + cycle + " " + ep + "]" : String.format("Input[%d %x %x]", cycle, addr, value);
+		}
+	}
+	
+	/** wall clock time in milliseconds */
+	public static final int TIME = 1;
+	/** tlb random index */
+	public static final int RANDOM = 2;
+	/** cycles spent idle */
+	public static final int IDLE = 3;
+	private static final int EXCEPTION = 4;
+	private static final int DEVICE = 5;
+	private static final int MAGIC = 0x4a524e4c;
+	private static final int VERSION = 1;
+	/** maximum real time between flushes while recording */
+	private static final long FLUSH_NS = 1_000_000_000;
+	
+	/** start recording to the file from the current cycle */
+	public static Journal record (final File file, final long cycle) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(cycle);
+		return new Journal(out, cycle);
+	}
+	
+	/** read the whole journal for replay */
+	public static Journal replay (final File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a journal: " + file);
+			}
+			final int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported journal version " + version);
+			}
+			final Journal j = new Journal(null, in.readLong());
+			long cycle = j.startCycle;
+			int type;
+			while ((type = in.read()) != -1) {
+				switch (type) {
+					case TIME:
+					case RANDOM:
+					case IDLE:
+						j.addValue(type, j.last[type] += readVarLong(in));
+						break;
+					case EXCEPTION: {
+						cycle += readVarLong(in);
+						final int excode = (int) readVarLong(in);
+						final int interrupt = (int) readVarLong(in);
+						final int irq = (int) readVarLong(in);
+						final int vaddr = (int) readVarLong(in);
+						final boolean tlbRefill = readVarLong(in) != 0;
+						final Input i = new Input(new CpuExceptionParams(excode, interrupt, irq, vaddr, tlbRefill));
+						i.cycle = cycle;
+						j.inputs.add(i);
+						break;
+					}
+					case DEVICE: {
+						cycle += readVarLong(in);
+						final Input i = new Input((int) readVarLong(in), (int) readVarLong(in));
+						i.cycle = cycle;
+						j.inputs.add(i);
+						break;
+					}
+					default:
+						throw new IOException("unknown journal record " + type);
+				}
+			}
+			return j;
+		}
+	}
+	
+	private static void writeVarLong (final DataOutput out, final long v) throws IOException {
+		// zigzag so small negative values are short too
+		long x = (v << 1) ^ (v >> 63);
+		while ((x & ~0x7fL) != 0) {
+			out.writeByte((int) (x & 0x7f) | 0x80);
+			x >>>= 7;
+		}
+		out.writeByte((int) x);
+	}
+	
+	private static long readVarLong (final DataInput in) throws IOException {
+		long x = 0;
+		for (int s = 0; s < 64; s += 7) {
+			final int b = in.readUnsignedByte();
+			x |= (long) (b & 0x7f) << s;
+			if ((b & 0x80) == 0) {
+				return (x >>> 1) ^ -(x & 1);
+			}
+		}
+		throw new IOException("invalid journal value");
+	}
+	
+	/** null if replaying */
+	private final DataOutputStream out;
+	private final long startCycle;
+	/** replayed values and their types */
+	private byte[] types = new byte[256];
+	private long[] values = new long[256];
+	private int valueCount;
+	private int valueIndex;
+	/** replayed inputs in cycle order */
+	private final List<Input> inputs = new ArrayList<>();
+	private int inputIndex;
+	/** cycle of the last recorded input */
+	private long inputCycle;
+	/** last value by type, values are written as the difference */
+	private final long[] last = new long[IDLE + 1];
+	/** real time of the last flush */
+	private long flushNs = System.nanoTime();
+	
+	private Journal (final DataOutputStream out, final long startCycle) {
+		this.out = out;
+		this.startCycle = startCycle;
+		this.inputCycle = startCycle;
+	}
+	
+	private void addValue (final int type, final long value) {
+		if (valueCount == values.length) {
+			types = Arrays.copyOf(types, valueCount * 2);
+			values = Arrays.copyOf(values, valueCount * 2);
+		}
+		types[valueCount] = (byte) type;
+		values[valueCount++] = value;
+	}
+	
+	public boolean isReplaying () {
+		return out == null;
+	}
+	
+	/** the cycle recording started */
+	public long getStartCycle () {
+		return startCycle;
+	}
+	
+	/**
+	 * when recording, write the value and return it. when replaying, return
+	 * the next recorded value instead, which must be of the same type.
+	 */
+	long value (final int type, final long value) {
+		try {
+			if (out != null) {
+				out.writeByte(type);
+				writeVarLong(out, value - last[type]);
+				last[type] = value;
+				return value;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("could not write journal", e);
+		}
+		if (valueIndex == valueCount) {
+			throw new RuntimeException("journal ended, expected type " + type);
+		}
+		final int t = types[valueIndex];
+		if (t != type) {
+			throw new RuntimeException("journal diverged at value " + valueIndex + ": expected type " + type + " but was " + t);
+		}
+		return values[valueIndex++];
+	}
+	
+	/** write a host input that arrived at the given cycle */
+	void record (final Input i) {
+		try {
+			if (i.ep != null) {
+				out.writeByte(EXCEPTION);
+				writeVarLong(out, i.cycle - inputCycle);
+				writeVarLong(out, i.ep.excode);
+				writeVarLong(out, i.ep.interrupt);
+				writeVarLong(out, i.ep.irq);
+				writeVarLong(out, i.ep.vaddr);
+				writeVarLong(out, i.ep.tlbRefill ? 1 : 0);
+			} else {
+				out.writeByte(DEVICE);
+				writeVarLong(out, i.cycle - inputCycle);
+				writeVarLong(out, i.addr);
+				writeVarLong(out, i.value);
+			}
+			inputCycle = i.cycle;
+		} catch (IOException e) {
+			throw new RuntimeException("could not write journal", e);
+		}
+	}
+	
+	/** cycle of the next replayed input, or Long.MAX_VALUE if there are none */
+	long getNextInputCycle () {
+		return inputIndex < inputs.size() ? inputs.get(inputIndex).cycle : Long.MAX_VALUE;
+	}
+	
+	/** the next replayed input if it is due at the cycle, otherwise null */
+	Input nextInput (final long cycle) {
+		if (inputIndex < inputs.size()) {
+			final Input i = inputs.get(inputIndex);
+			if (i.cycle < cycle) {
+				throw new RuntimeException("journal diverged: missed " + i + " at cycle " + cycle);
+			} else if (i.cycle == cycle) {
+				inputIndex++;
+				return i;
+			}
+		}
+		return null;
+	}
+	
+	/** true if everything recorded has been replayed */
+	public boolean isReplayed () {
+		return valueIndex == valueCount && inputIndex == inputs.size();
+	}
+	
+	public void flush () throws IOException {
+		if (out != null) {
+			out.flush();
+			flushNs = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * flush if recording and the last flush was at least a second ago, so a
+	 * killed process loses at most about that much of the recording
+	 */
+	void flushIfDue () {
+		if (out != null && System.nanoTime() - flushNs >= FLUSH_NS) {
+			try {
+				flush();
+			} catch (IOException e) {
+				throw new RuntimeException("could not write journal", e);
+			}
+		}
+	}
+	
+	@Override
+	public void close () throws IOException {
+		if (out != null) {
+			out.close();
+		}
+	}
+	
+	@Override
+	public String toString () {
+		return "Journal[" + (out != null ? "recording" : "replaying") + " from " + startCycle + "]";
+	}
+}
@@ -1,6 +1,14 @@
 package sys.mips;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import sys.malta.Malta;
 import sys.util.Logger;
@@ -9,8 +17,9 @@ import sys.util.Symbols;
 import static sys.mips.MemoryUtil.*;
 
 /**
- * int[] backed memory as described in the MIPS32 4K processor core family
- * software user's manual.
+ * byte buffer backed memory as described in the MIPS32 4K processor core family
+ * software user's manual. the buffer is in guest byte order and can be on the
+ * heap, off heap (the default) or memory mapped.
  * <p>
  * although memory can be considered to be a device, it doesn't actually
  * implement the Device interface as it is a special case (referred to directly
@@ -19,29 +28,76 @@ import static sys.mips.MemoryUtil.*;
 public final class Memory extends Device {
 	
 	private static final Logger log = new Logger("Memory");
+	/** number of software tlb slots, must be a power of 2 */
+	private static final int STLB_SIZE = 256;
+	private static final int STLB_MASK = STLB_SIZE - 1;
+	/** number of chains in the tlb lookup index, must be a power of 2 */
+	private static final int TLB_BUCKETS = 64;
+	private static final int TLB_BUCKET_MASK = TLB_BUCKETS - 1;
 	
-	/** backing data as int (shift addr left 2 for index) */
-	private final int[] data;
-	private final int wordAddrXor;
-	private final int halfWordAddrXor;
+	/** backing data in guest byte order (shift index left 2 for address) */
+	private final ByteBuffer data;
+	/**
+	 * view of data for relative bulk transfers, per thread as the position is
+	 * mutable and e.g. the ui and a loader may copy at the same time
+	 */
+	private final ThreadLocal<ByteBuffer> bulk;
+	/** size of data in words */
+	private final int words;
+	/** words of ram visible through kseg1, below the device window */
+	private final int uncachedWords;
+	/** predecoded instructions, invalidated by stores */
+	private final CodeCache code;
 	private final boolean littleEndian;
 	private final Entry[] entries = new Entry[16];
+	/**
+	 * software tlb, direct mapped by virtual page number. tags are (vpn << 8)
+	 * | asid, or -1 if empty. bases are the physical page address. the write
+	 * view is only filled by stores, after the dirty bit is set.
+	 */
+	private final int[] readTags = new int[STLB_SIZE];
+	private final int[] readBases = new int[STLB_SIZE];
+	private final int[] writeTags = new int[STLB_SIZE];
+	private final int[] writeBases = new int[STLB_SIZE];
+	/**
+	 * tlb lookup index, chained by vpn2 shifted right by the page mask size.
+	 * heads and next are entry index + 1, or 0 for the end of the chain.
+	 */
+	private final int[] tlbHeads = new int[TLB_BUCKETS];
+	private final int[] tlbNext = new int[entries.length];
+	private final int[] tlbBucket = new int[entries.length];
+	/** distinct page masks of the entries, each is looked up in the index */
+	private final int[] tlbMasks = new int[entries.length];
+	private int tlbMaskCount;
 	private final Malta malta;
 	private final Cpu cpu;
+	/** written bit per 4k page of ram (page n is bit n of word n/64), null if not tracked */
+	private volatile AtomicLongArray dirtyPages;
 	
 	private boolean kernelMode;
 	private int asid;
 	
+	/** create memory with off heap backing data */
 	public Memory (Cpu cpu, int size, boolean littleEndian) {
+		this(cpu, ByteBuffer.allocateDirect(size), littleEndian);
+	}
+	
+	/** create memory with the given backing data, the byte order is set */
+	public Memory (Cpu cpu, ByteBuffer data, boolean littleEndian) {
 		super(null, 0);
 		this.cpu = cpu;
-		this.data = new int[size >>> 2];
+		this.data = data.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		this.bulk = ThreadLocal.withInitial(data::duplicate);
+		this.words = data.capacity() >>> 2;
+		this.uncachedWords = Math.min(words, Malta.M_PCI1 >>> 2);
+		this.code = new CodeCache(this.data);
 		this.littleEndian = littleEndian;
-		this.wordAddrXor = littleEndian ? 0 : 3;
-		this.halfWordAddrXor = littleEndian ? 0 : 2;
 		for (int n = 0; n < entries.length; n++) {
 			entries[n] = new Entry();
 		}
+		indexEntries();
+		Arrays.fill(readTags, -1);
+		Arrays.fill(writeTags, -1);
 		this.malta = new Malta(this, KSEG1);
 	}
 	
@@ -83,17 +139,140 @@ public final class Memory extends Device {
 		return malta;
 	}
 	
+	public CodeCache getCodeCache () {
+		return code;
+	}
+	
+	/** size of ram in bytes */
+	public int getSize () {
+		return data.capacity();
+	}
+	
+	/** a view of the ram in guest byte order with position 0 */
+	public ByteBuffer getData () {
+		return data.duplicate().order(data.order());
+	}
+	
+	/** if ram is memory mapped, write changes back to the file */
+	public void sync () {
+		if (data instanceof MappedByteBuffer) {
+			((MappedByteBuffer) data).force();
+		}
+	}
+	
+	/** start tracking written pages with an empty bitmap, or stop tracking */
+	public void setDirtyTracking (final boolean enabled) {
+		dirtyPages = enabled ? newDirtyPages() : null;
+	}
+	
+	public boolean isDirtyTracking () {
+		return dirtyPages != null;
+	}
+	
+	/**
+	 * return the pages written since tracking started or the last call and
+	 * clear them, null if not tracking. can be called from any thread, each
+	 * word of the bitmap is fetched and cleared atomically so concurrent
+	 * stores are either returned or kept for the next call. there can only be
+	 * one reader (e.g. incremental snapshots), pages taken by one are not
+	 * seen by another.
+	 */
+	public long[] takeDirtyPages () {
+		final AtomicLongArray d = dirtyPages;
+		if (d == null) {
+			return null;
+		}
+		final long[] a = new long[d.length()];
+		for (int n = 0; n < a.length; n++) {
+			a[n] = d.getAndSet(n, 0);
+		}
+		return a;
+	}
+	
+	private AtomicLongArray newDirtyPages () {
+		final int pages = (words + CodeCache.PAGE_WORD_MASK) >>> CodeCache.PAGE_WORD_SHIFT;
+		return new AtomicLongArray((pages + 63) >>> 6);
+	}
+	
+	/** write tlb state (but not ram) */
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeBoolean(kernelMode);
+		out.writeInt(asid);
+		for (int n = 0; n < entries.length; n++) {
+			final Entry e = entries[n];
+			out.writeInt(e.pageMask);
+			out.writeInt(e.virtualPageNumber2);
+			out.writeInt(e.addressSpaceId);
+			out.writeBoolean(e.global);
+			for (int m = 0; m < e.data.length; m++) {
+				final EntryData d = e.data[m];
+				out.writeInt(d.physicalFrameNumber);
+				out.writeBoolean(d.dirty);
+				out.writeBoolean(d.valid);
+			}
+		}
+	}
+	
+	/** read tlb state written by saveState, drop cached translations and code */
+	public void loadState (final DataInput in) throws IOException {
+		kernelMode = in.readBoolean();
+		asid = in.readInt();
+		for (int n = 0; n < entries.length; n++) {
+			final Entry e = entries[n];
+			e.pageMask = in.readInt();
+			e.virtualPageNumber2 = in.readInt();
+			e.addressSpaceId = in.readInt();
+			e.global = in.readBoolean();
+			for (int m = 0; m < e.data.length; m++) {
+				final EntryData d = e.data[m];
+				d.physicalFrameNumber = in.readInt();
+				d.dirty = in.readBoolean();
+				d.valid = in.readBoolean();
+			}
+		}
+		indexEntries();
+		Arrays.fill(readTags, -1);
+		Arrays.fill(writeTags, -1);
+		code.clear();
+	}
+	
+	/** count entry to block at virtual address, null if not cacheable */
+	public final Block loadBlock (final int vaddr) {
+		if ((vaddr & 3) == 0) {
+			final int i = index(vaddr, false);
+			if (i >= 0) {
+				return code.getBlock(i);
+			}
+		}
+		return null;
+	}
+	
+	/** load predecoded instruction according to kernel mode and asid */
+	public final Decoded loadDecoded (final int vaddr) {
+		if ((vaddr & 3) == 0) {
+			final int i = index(vaddr, false);
+			if (i >= 0) {
+				return code.get(i);
+			} else {
+				// not cached
+				return new Decoded(malta.loadWord(vaddr));
+			}
+		} else {
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr, false);
+		}
+	}
+	
 	@Override
 	public final int loadWord (final int vaddr) {
 		if ((vaddr & 3) == 0) {
 			final int i = index(vaddr, false);
 			if (i >= 0) {
-				return data[i];
+				return data.getInt(i << 2);
 			} else {
 				return malta.loadWord(vaddr);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr, false);
 		}
 	}
 	
@@ -102,12 +281,13 @@ public final class Memory extends Device {
 		if ((vaddr & 3) == 0) {
 			int i = index(vaddr, true);
 			if (i >= 0) {
-				data[i] = value;
+				data.putInt(i << 2, value);
+				stored(i);
 			} else {
 				malta.storeWord(vaddr, value);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_STORE, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_STORE, vaddr, false);
 		}
 	}
 	
@@ -116,15 +296,12 @@ public final class Memory extends Device {
 		if ((vaddr & 1) == 0) {
 			final int i = index(vaddr, false);
 			if (i >= 0) {
-				final int w = data[i];
-				// 0,2 -> 2,0 -> 16,0
-				final int s = ((vaddr & 2) ^ halfWordAddrXor) << 3;
-				return (short) (w >>> s);
+				return data.getShort((i << 2) | (vaddr & 2));
 			} else {
 				return malta.loadHalfWord(vaddr);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr, false);
 		}
 	}
 	
@@ -133,17 +310,13 @@ public final class Memory extends Device {
 		if ((vaddr & 1) == 0) {
 			int i = index(vaddr, true);
 			if (i >= 0) {
-				final int w = data[i];
-				// 0,2 -> 2,0 -> 16,0
-				final int s = ((vaddr & 2) ^ halfWordAddrXor) << 3;
-				final int andm = ~(0xffff << s);
-				final int orm = (value & 0xffff) << s;
-				data[i] = (w & andm) | orm;
+				data.putShort((i << 2) | (vaddr & 2), value);
+				stored(i);
 			} else {
 				malta.storeHalfWord(vaddr, value);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_STORE, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_STORE, vaddr, false);
 		}
 	}
 	
@@ -152,12 +325,7 @@ public final class Memory extends Device {
 	public final byte loadByte (final int vaddr) {
 		final int i = index(vaddr, false);
 		if (i >= 0) {
-			final int w = data[i];
-			// 0,1,2,3 xor 0 -> 0,1,2,3
-			// 0,1,2,3 xor 3 -> 3,2,1,0
-			// 0,1,2,3 -> 3,2,1,0 -> 24,16,8,0
-			final int s = ((vaddr & 3) ^ wordAddrXor) << 3;
-			return (byte) (w >>> s);
+			return data.get((i << 2) | (vaddr & 3));
 		} else {
 			return malta.loadByte(vaddr);
 		}
@@ -167,18 +335,110 @@ public final class Memory extends Device {
 	public final void storeByte (final int vaddr, final byte value) {
 		int i = index(vaddr, true);
 		if (i >= 0) {
-			final int w = data[i];
-			// if xor=0: 0,1,2,3 -> 0,8,16,24
-			// if xor=3: 0,1,2,3 -> 3,2,1,0 -> 24,16,8,0
-			final int s = ((vaddr & 3) ^ wordAddrXor) << 3;
-			final int andm = ~(0xff << s);
-			final int orm = (value & 0xff) << s;
-			data[i] = (w & andm) | orm;
+			data.put((i << 2) | (vaddr & 3), value);
+			stored(i);
 		} else {
 			malta.storeByte(vaddr, value);
 		}
 	}
 	
+	/**
+	 * copy bytes into memory at the virtual address, translating once per
+	 * page. device addresses are written a byte at a time.
+	 */
+	public final void copyIn (final int vaddr, final byte[] src, final int off, final int len) {
+		final ByteBuffer bulk = this.bulk.get();
+		for (int n = 0; n < len;) {
+			final int a = vaddr + n;
+			final int c = Math.min(len - n, 0x1000 - (a & 0xfff));
+			final int i = index(a, true);
+			if (i >= 0) {
+				final int pa = (i << 2) | (a & 3);
+				bulk.position(pa);
+				bulk.put(src, off + n, c);
+				storedRange(pa, c);
+			} else {
+				for (int m = 0; m < c; m++) {
+					malta.storeByte(a + m, src[off + n + m]);
+				}
+			}
+			n += c;
+		}
+	}
+	
+	/**
+	 * copy bytes out of memory at the virtual address, translating once per
+	 * page. device addresses are read a byte at a time.
+	 */
+	public final void copyOut (final int vaddr, final byte[] dst, final int off, final int len) {
+		final ByteBuffer bulk = this.bulk.get();
+		for (int n = 0; n < len;) {
+			final int a = vaddr + n;
+			final int c = Math.min(len - n, 0x1000 - (a & 0xfff));
+			final int i = index(a, false);
+			if (i >= 0) {
+				bulk.position((i << 2) | (a & 3));
+				bulk.get(dst, off + n, c);
+			} else {
+				for (int m = 0; m < c; m++) {
+					dst[off + n + m] = malta.loadByte(a + m);
+				}
+			}
+			n += c;
+		}
+	}
+	
+	/**
+	 * set bytes of memory at the virtual address, translating once per page
+	 * and writing each page from a filled scratch array
+	 */
+	public final void fill (final int vaddr, final byte value, final int len) {
+		final ByteBuffer bulk = this.bulk.get();
+		final byte[] page = new byte[Math.min(len, 0x1000)];
+		if (value != 0) {
+			Arrays.fill(page, value);
+		}
+		for (int n = 0; n < len;) {
+			final int a = vaddr + n;
+			final int c = Math.min(len - n, 0x1000 - (a & 0xfff));
+			final int i = index(a, true);
+			if (i >= 0) {
+				final int pa = (i << 2) | (a & 3);
+				bulk.position(pa);
+				bulk.put(page, 0, c);
+				storedRange(pa, c);
+			} else {
+				for (int m = 0; m < c; m++) {
+					malta.storeByte(a + m, value);
+				}
+			}
+			n += c;
+		}
+	}
+	
+	/** physical bytes have been written */
+	private void storedRange (final int pa, final int len) {
+		for (int i = pa >>> 2; i <= (pa + len - 1) >>> 2; i++) {
+			stored(i);
+		}
+	}
+	
+	/** physical word index has been written */
+	private void stored (final int i) {
+		code.store(i);
+		final AtomicLongArray d = dirtyPages;
+		if (d != null) {
+			final int page = i >>> CodeCache.PAGE_WORD_SHIFT;
+			final int w = page >>> 6;
+			final long bit = 1L << page;
+			// usually already set, only compare and set the first time
+			long x = d.get(w);
+			while ((x & bit) == 0 && !d.compareAndSet(w, x, x | bit)) {
+				x = d.get(w);
+			}
+		}
+	}
+	
 	/**
 	 * translate virtual address to physical. store affects dirty bit if true
 	 * and type of exception thrown if address is invalid.
@@ -188,98 +448,184 @@ public final class Memory extends Device {
 		// useg > kseg3 > kseg2 > kseg1 > kseg0
 		if (km && vaddr < KSEG1) {
 			// kseg0 (direct, fast)
-			return (vaddr & KSEG_MASK) >> 2;
+			final int i = (vaddr & KSEG_MASK) >> 2;
+			if (i < words) {
+				return i;
+			}
+			throw new AddressException(vaddr, vaddr & KSEG_MASK);
 		} else if (vaddr >= 0 || (km && vaddr >= KSEG2)) {
-			// useg/kuseg/kseg2/kseg3 (translated, slow)
+			// useg/kuseg/kseg2/kseg3 (translated, software tlb then tlb)
+			final int vpn = vaddr >>> 12;
+			final int slot = vpn & STLB_MASK;
+			final int tag = (vpn << 8) | asid;
+			if (store) {
+				if (writeTags[slot] == tag) {
+					return (writeBases[slot] | (vaddr & 0xfff)) >> 2;
+				}
+			} else if (readTags[slot] == tag) {
+				return (readBases[slot] | (vaddr & 0xfff)) >> 2;
+			}
 			return lookup(vaddr, store) >> 2;
 		} else if (km && vaddr < KSEG2) {
-			// kseg1 (malta/direct, very slow)
-			// really this should be same as kseg0, but we want to use the return value
-			// to know if we should call malta instead
-			//return vaddr & KSEG_MASK;
-			return -1;
+			// kseg1 (uncached), direct for sdram, -1 to call malta for devices
+			final int i = (vaddr & KSEG_MASK) >>> 2;
+			return i < uncachedWords ? i : -1;
 		} else {
 			throw new RuntimeException("cannot translate kseg as user: " + Integer.toHexString(vaddr));
 		}
 	}
 	
-	public final int probe (final int vpn2) {
+	/** remove all pages of the entry from the lookup index and software tlb before it is written */
+	public final void removeEntry (final int i) {
+		final Entry e = entries[i];
+		int n = tlbHeads[tlbBucket[i]];
+		if (n == i + 1) {
+			tlbHeads[tlbBucket[i]] = tlbNext[i];
+		} else {
+			while (tlbNext[n - 1] != i + 1) {
+				n = tlbNext[n - 1];
+			}
+			tlbNext[n - 1] = tlbNext[i];
+		}
+		invalidate(e.virtualPageNumber2, e.pageMask);
+	}
+	
+	/** add the entry to the lookup index after it is written */
+	public final void addEntry (final int i) {
+		final Entry e = entries[i];
+		if ((e.pageMask & (e.pageMask + 1)) != 0) {
+			throw new RuntimeException("invalid page mask " + Integer.toHexString(e.pageMask));
+		}
+		final int b = (e.virtualPageNumber2 >>> Integer.bitCount(e.pageMask)) & TLB_BUCKET_MASK;
+		tlbBucket[i] = b;
+		tlbNext[i] = tlbHeads[b];
+		tlbHeads[b] = i + 1;
+		// the distinct page masks, usually just one or two
+		tlbMaskCount = 0;
+		for (int n = 0; n < entries.length; n++) {
+			final int mask = entries[n].pageMask;
+			int m = 0;
+			while (m < tlbMaskCount && tlbMasks[m] != mask) {
+				m++;
+			}
+			if (m == tlbMaskCount) {
+				tlbMasks[tlbMaskCount++] = mask;
+			}
+		}
+		invalidate(e.virtualPageNumber2, e.pageMask);
+	}
+	
+	/** build the lookup index from the entries */
+	private void indexEntries () {
+		Arrays.fill(tlbHeads, 0);
 		for (int n = 0; n < entries.length; n++) {
-			Entry e = entries[n];
-			if (e.virtualPageNumber2 == vpn2 && (e.addressSpaceId == asid || e.global)) {
-				log.println("tlb probe = " + n);
-				return n;
+			addEntry(n);
+		}
+	}
+	
+	/** remove all pages of the virtual page pair from the software tlb */
+	private void invalidate (final int vpn2, final int mask) {
+		final int pages = (mask + 1) << 1;
+		if (pages >= STLB_SIZE) {
+			Arrays.fill(readTags, -1);
+			Arrays.fill(writeTags, -1);
+		} else {
+			final int vpn = (vpn2 & ~mask) << 1;
+			for (int n = 0; n < pages; n++) {
+				final int slot = (vpn + n) & STLB_MASK;
+				readTags[slot] = -1;
+				writeTags[slot] = -1;
+			}
+		}
+	}
+	
+	/** return index of entry matching the virtual page pair and asid, or -1 */
+	private int find (final int vpn2) {
+		for (int k = 0; k < tlbMaskCount; k++) {
+			final int mask = tlbMasks[k];
+			final int shift = Integer.bitCount(mask);
+			final int key = vpn2 >>> shift;
+			for (int n = tlbHeads[key & TLB_BUCKET_MASK]; n != 0; n = tlbNext[n - 1]) {
+				final Entry e = entries[n - 1];
+				if (e.pageMask == mask && (e.virtualPageNumber2 >>> shift) == key && (e.addressSpaceId == asid || e.global)) {
+					return n - 1;
+				}
 			}
 		}
-		log.println("tlb probe miss");
 		return -1;
 	}
 	
+	public final int probe (final int vpn2) {
+		final int n = find(vpn2);
+		if (n >= 0) {
+			log.println("tlb probe = " + n);
+		} else {
+			log.println("tlb probe miss");
+		}
+		return n;
+	}
+	
 	/**
 	 * lookup virtual address using tlb
 	 */
 	private final int lookup (final int vaddr, final boolean store) {
-		int i = lookup1(vaddr, store);
-		// need to populate the packed entries...
-		//int j = lookup2(vaddr, store);
-		return i;
-	}
-	
-	private final int lookup1 (final int vaddr, final boolean store) {	
-		final int vpn2 = CpuFunctions.vpn2(vaddr);
-		final int eo = CpuFunctions.evenodd(vaddr);
+		final int n = find(vaddr >>> 13);
 		boolean refill = true;
 		
-		// log.debug("lookup vaddr=" + Integer.toHexString(vaddr) + " asid=" +
-		// Integer.toHexString(asid) + " vpn2=" + Integer.toHexString(vpn2));
-		
-		for (int n = 0; n < entries.length; n++) {
-			Entry e = entries[n];
-			// log.debug("entry[" + n + "]=" + e);
-			
-			if (e.virtualPageNumber2 == vpn2 && (e.addressSpaceId == asid || e.global)) {
-				// log.debug("tlb hit");
-				EntryData d = e.data[eo];
-				if (!d.valid) {
-					log.println("entry invalid (not a refill)...");
-					refill = false;
-					break;
-				}
-				
+		if (n >= 0) {
+			final Entry e = entries[n];
+			// the even/odd bit and offset depend on the page size
+			final int shift = Integer.bitCount(e.pageMask);
+			final EntryData d = e.data[(vaddr >>> (12 + shift)) & 1];
+			if (d.valid) {
 				if (store && !d.dirty) {
 					// XXX set dirty if write? how does os know?
 					d.dirty = true;
 				}
 				
-				final int paddr = (d.physicalFrameNumber << 12) | (vaddr & 0xfff);
+				final int offsetMask = (0x1000 << shift) - 1;
+				final int paddr = ((d.physicalFrameNumber << 12) & ~offsetMask) | (vaddr & offsetMask);
+				if ((paddr >>> 2) >= words) {
+					// the software tlb only holds ram
+					throw new AddressException(vaddr, paddr);
+				}
+				final int base = paddr & ~0xfff;
+				final int vpn = vaddr >>> 12;
+				final int slot = vpn & STLB_MASK;
+				final int tag = (vpn << 8) | asid;
+				readTags[slot] = tag;
+				readBases[slot] = base;
+				if (store) {
+					writeTags[slot] = tag;
+					writeBases[slot] = base;
+				}
+				
 				// log.debug("translated " + Integer.toHexString(vaddr) + " to "
 				// + Integer.toHexString(paddr));
 				return paddr;
 			}
+			
+			log.println(0, "entry invalid (not a refill)...");
+			refill = false;
+			
+		} else {
+			log.println(0, "tlb miss");
 		}
 		
-		log.println("tlb miss");
-		
-		//		for (int n = 0; n < entries.length; n++) {
-		//			Entry e = entries[n];
-		//			log.println("entry[" + n + "]=" + e);
-		//		}
-		
 		// TODO also need to throw modified exception if page is read only...
-		throw new CpuException(new CpuExceptionParams(store ? CpuConstants.EX_TLB_STORE : CpuConstants.EX_TLB_LOAD, vaddr, refill));
+		throw cpu.exception(store ? CpuConstants.EX_TLB_STORE : CpuConstants.EX_TLB_LOAD, vaddr, refill);
 	}
 	
 	/** load word without address translation */
 	public final int loadWordKernel (final int vaddr) {
 		final int i = (vaddr & KSEG_MASK) >>> 2;
-				return i < data.length ? data[i] : 0;
+		return i < words ? data.getInt(i << 2) : 0;
 	}
 	
 	/** load byte without address translation */
 	public final byte loadByteKernel (final int vaddr) {
-		final int w = loadWordKernel(vaddr);
-		final int s = ((vaddr & 3) ^ wordAddrXor) << 3;
-		return (byte) (w >>> s);
+		final int a = vaddr & KSEG_MASK;
+		return a < data.capacity() ? data.get(a) : 0;
 	}
 	
 	/** load boxed word, null if unmapped */
@@ -288,8 +634,8 @@ public final class Memory extends Device {
 		// FIXME this doesn't translate
 		final int a = vaddr & KSEG_MASK;
 		final int i = a >>> 2;
-		if (i >= 0 && i < data.length) {
-			final int w = data[i];
+		if (i >= 0 && i < words) {
+			final int w = data.getInt(i << 2);
 			return Integer.valueOf(w);
 			
 		} else {
@@ -300,9 +646,9 @@ public final class Memory extends Device {
 	/** load boxed word, null if unmapped */
 	public Long loadDoubleWordSafe (final int paddr) {
 		final int i = paddr >>> 2;
-				if (i >= 0 && i < data.length - 1) {
-					final long w1 = data[i] & 0xffff_ffffL;
-					final long w2 = data[i + 1] & 0xffff_ffffL;
+				if (i >= 0 && i < words - 1) {
+					final long w1 = data.getInt(i << 2) & 0xffff_ffffL;
+					final long w2 = data.getInt((i + 1) << 2) & 0xffff_ffffL;
 					// XXX might need swap
 					return Long.valueOf((w1 << 32) | w2);
 					
@@ -314,10 +660,10 @@ public final class Memory extends Device {
 	public void print (PrintStream ps) {
 		ps.println("memory map");
 		// for each 1mb block in words
-		for (int j = 0; j < data.length; j += 0x40000) {
+		for (int j = 0; j < words; j += 0x40000) {
 			float c = 0;
-			for (int i = 0; i < 0x40000; i++) {
-				if (data[j + i] != 0) {
+			for (int i = 0; i < 0x40000 && j + i < words; i++) {
+				if (data.getInt((j + i) << 2) != 0) {
 					c++;
 				}
 			}
@@ -332,6 +678,6 @@ public final class Memory extends Device {
 	
 	@Override
 	public String toString () {
-		return String.format("Memory[size=%d le=%s]", data.length, littleEndian);
+		return String.format("Memory[size=%d le=%s direct=%s]", words, littleEndian, data.isDirect());
 	}
 }
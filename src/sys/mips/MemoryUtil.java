@@ -1,5 +1,12 @@
 package sys.mips;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
@@ -26,6 +33,34 @@ public class MemoryUtil {
 	/** 512mb mask */
 	public static final int KSEG_MASK = 0x1fff_ffff;
 	
+	/**
+	 * map file as ram of the given size, extending it if necessary. changes
+	 * are written back to the file by Memory.sync.
+	 */
+	public static MappedByteBuffer mapRam (final File file, final int size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+	
+	/**
+	 * map file privately as ram of the given size. pages are shared with other
+	 * mappings of the file until the first store to them, changes are never
+	 * written back.
+	 */
+	public static MappedByteBuffer mapRamPrivate (final File file, final int size) throws IOException {
+		// private mappings need a writable channel even though the file is not changed
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size) {
+				throw new IOException("ram file too small: " + raf.length());
+			}
+			return raf.getChannel().map(FileChannel.MapMode.PRIVATE, 0, size);
+		}
+	}
+	
 	/** round up to nearest word */
 	public static final int nextWord (final int addr) {
 		return (addr + 3) & ~3;
@@ -34,20 +69,19 @@ public class MemoryUtil {
 	/** return pointer to first word after data */
 	public static final int storeWords (final Memory mem, final int addr, final List<Integer> data) {
 		System.out.println("memory store integers " + data.size());
-		for (int n = 0; n < data.size(); n++) {
-			final int a = addr + (n * 4);
-			mem.storeWord(a, data.get(n));
+		final int[] a = new int[data.size()];
+		for (int n = 0; n < a.length; n++) {
+			a[n] = data.get(n);
 		}
-		return addr + (data.size() * 4);
+		return storeWords(mem, addr, a);
 	}
 	
 	/** return pointer to first word after data */
 	public static final int storeWords (final Memory mem, final int addr, final int[] data) {
 		System.out.println("memory store ints " + data.length);
-		for (int n = 0; n < data.length; n++) {
-			final int a = addr + (n * 4);
-			mem.storeWord(a, data[n]);
-		}
+		final ByteBuffer b = ByteBuffer.allocate(data.length * 4);
+		b.order(mem.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asIntBuffer().put(data);
+		mem.copyIn(addr, b.array(), 0, b.capacity());
 		return addr + (data.length * 4);
 	}
 	
@@ -95,50 +129,18 @@ public class MemoryUtil {
 	public static final int storeBytes (final Memory mem, final int addr, final byte[] data) {
 		//System.out.println("memory store bytes " + data.length);
 		if (data.length > 0) {
-			if ((addr & 3) == 0 && (data.length & 3) == 0) {
-				storeBytesAsWords(mem, addr, data, 0, data.length);
-				
-			} else {
-				System.out.println("store " + data.length + " bytes as bytes");
-				// slow...
-				for (int n = 0; n < data.length; n++) {
-					mem.storeByte(addr + n, data[n]);
-				}
-			}
+			mem.copyIn(addr, data, 0, data.length);
 			return addr + data.length;
 		} else {
 			throw new IllegalArgumentException("zero length");
 		}
 	}
 	
-	private static void storeBytesAsWords (final Memory mem, final int addr, byte[] data, int offset, int len) {
-		System.out.println("memory store bytes as words " + len);
-		if ((addr & 3) == 0 && (len & 3) == 0) {
-			for (int n = offset; n < (offset + len); n += 4) {
-				final int b1 = data[n] & 0xff;
-				final int b2 = data[n + 1] & 0xff;
-				final int b3 = data[n + 2] & 0xff;
-				final int b4 = data[n + 3] & 0xff;
-				int w;
-				if (mem.isLittleEndian()) {
-					w = (b4 << 24) | (b3 << 16) | (b2 << 8) | b1;
-				} else {
-					w = (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
-				}
-				mem.storeWord(addr + n, w);
-			}
-		} else {
-			throw new IllegalArgumentException("unaligned");
-		}
-	}
-	
-	/** convert index out of bounds exception to virtual address (assuming kseg0) */
-	public static int toAddr (Exception e) {
-		if (e instanceof ArrayIndexOutOfBoundsException) {
-			try {
-				return KSEG0 + (Integer.parseInt(e.getMessage()) << 2);
-			} catch (Exception e2) {
-				//
+	/** the virtual address of an address exception in the exception or its causes, or 0 */
+	public static int toAddr (Throwable e) {
+		for (; e != null; e = e.getCause()) {
+			if (e instanceof AddressException) {
+				return ((AddressException) e).vaddr;
 			}
 		}
 		return 0;
@@ -0,0 +1,18 @@
+package sys.mips;
+
+/**
+ * reason Cpu.run (long) or Cpu.step returned
+ */
+public enum RunStatus {
+	/** executed the requested number of instructions */
+	BUDGET,
+	/** program exited, see Cpu.getExitCode */
+	EXIT,
+	/**
+	 * executed wait instruction and nothing is scheduled that could end the
+	 * wait, call Cpu.addException or Cpu.addInput (or Cpu.idle) and run again
+	 */
+	WAITING,
+	/** stopped by an unexpected exception, see Cpu.getFault */
+	FAULT
+}
@@ -0,0 +1,138 @@
+package sys.mips;
+
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+
+/**
+ * device timer events in virtual time, i.e. cpu cycles at a configurable
+ * rate. events are added, cancelled and run on the cpu thread (device
+ * register writes and burst boundaries), or while the cpu is not running.
+ * events due at the same cycle run in the order they were scheduled.
+ */
+public final class Scheduler {
+	
+	/** a scheduled event, repeated every period cycles if period > 0 */
+	public static final class Event implements Comparable<Event> {
+		
+		private final Runnable action;
+		private final long period;
+		private long cycle;
+		private long seq;
+		private boolean cancelled;
+		
+		private Event (final Runnable action, final long cycle, final long period) {
+			this.action = action;
+			this.cycle = cycle;
+			this.period = period;
+		}
+		
+		/** cycle of the next run */
+		public long getCycle () {
+			return cycle;
+		}
+		
+		/** stop the event running again */
+		public void cancel () {
+			cancelled = true;
+		}
+		
+		/** true if cancelled or a one off event that has run */
+		public boolean isDone () {
+			return cancelled;
+		}
+		
+		@Override
+		public int compareTo (final Event e) {
+			return cycle != e.cycle ? Long.compare(cycle, e.cycle) : Long.compare(seq, e.seq);
+		}
+	}
+	
+	private final PriorityQueue<Event> queue = new PriorityQueue<>();
+	/** the current cycle */
+	private final LongSupplier clock;
+	private long cyclesPerSecond;
+	private long seq;
+	
+	public Scheduler (final LongSupplier clock, final long cyclesPerSecond) {
+		this.clock = clock;
+		this.cyclesPerSecond = cyclesPerSecond;
+	}
+	
+	public long getCycle () {
+		return clock.getAsLong();
+	}
+	
+	public long getCyclesPerSecond () {
+		return cyclesPerSecond;
+	}
+	
+	/** set the virtual clock rate, doesn't move events already scheduled */
+	public void setCyclesPerSecond (final long cyclesPerSecond) {
+		if (cyclesPerSecond <= 0) {
+			throw new IllegalArgumentException("cycles per second " + cyclesPerSecond);
+		}
+		this.cyclesPerSecond = cyclesPerSecond;
+	}
+	
+	/** convert virtual nanoseconds to cycles (at least 1) */
+	public long nsToCycles (final long ns) {
+		return Math.max(1, Math.round(ns * (cyclesPerSecond / 1_000_000_000.0)));
+	}
+	
+	/** convert cycles to virtual nanoseconds */
+	public long cyclesToNs (final long cycles) {
+		return Math.round(cycles * (1_000_000_000.0 / cyclesPerSecond));
+	}
+	
+	/** run the action once after delay cycles */
+	public Event schedule (final Runnable action, final long delay) {
+		return add(new Event(action, getCycle() + delay, 0));
+	}
+	
+	/** run the action after delay cycles and then every period cycles */
+	public Event scheduleAtFixedRate (final Runnable action, final long delay, final long period) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period " + period);
+		}
+		return add(new Event(action, getCycle() + delay, period));
+	}
+	
+	private Event add (final Event e) {
+		e.seq = seq++;
+		queue.add(e);
+		return e;
+	}
+	
+	/** cycle of the first event, or Long.MAX_VALUE if there are none */
+	public long getNextCycle () {
+		Event e;
+		while ((e = queue.peek()) != null && e.cancelled) {
+			queue.poll();
+		}
+		return e != null ? e.cycle : Long.MAX_VALUE;
+	}
+	
+	/** run the events due at or before the current cycle */
+	public void run () {
+		final long now = getCycle();
+		Event e;
+		while ((e = queue.peek()) != null && e.cycle <= now) {
+			queue.poll();
+			if (!e.cancelled) {
+				if (e.period > 0) {
+					e.cycle += e.period;
+					add(e);
+				} else {
+					e.cancelled = true;
+				}
+				e.action.run();
+			}
+		}
+	}
+	
+	/** drop all events */
+	public void clear () {
+		queue.clear();
+	}
+	
+}
@@ -0,0 +1,144 @@
+package sys.mips;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import sys.elf.ELF32;
+import sys.util.Symbols;
+
+/**
+ * binary ring buffer of executed instructions (cycle, pc and instruction
+ * word), filtered by address range. written by the cpu thread when tracing is
+ * enabled and decoded offline with the symbol table of the traced image.
+ */
+public final class Trace {
+	
+	private static final int MAGIC = 0x4d545243;
+	private static final int VERSION = 1;
+	
+	/** decode trace file with optional elf file for symbols */
+	public static void main (String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: Trace tracefile [elffile]");
+			return;
+		}
+		final Symbols symbols = new Symbols();
+		if (args.length > 1) {
+			try (FileChannel chan = FileChannel.open(Paths.get(args[1]), StandardOpenOption.READ)) {
+				MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+				CpuUtil.loadSymbols(new ELF32(buf), symbols);
+			}
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+			print(in, symbols, System.out);
+		}
+	}
+	
+	/** print decoded trace */
+	public static void print (final DataInput in, final Symbols symbols, final PrintStream ps) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a trace file");
+		}
+		final int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unknown trace version " + version);
+		}
+		final int count = in.readInt();
+		for (int n = 0; n < count; n++) {
+			final long cycle = in.readLong();
+			final int pc = in.readInt();
+			final int isn = in.readInt();
+			final String name = symbols.getNameAddrOffset(pc);
+			final String x = InstructionUtil.isnString(pc, isn, symbols, null);
+			ps.println(String.format("%d %-40s %08x %s", cycle, name, isn, x));
+		}
+	}
+	
+	/** cycle of each entry */
+	private long[] cycles;
+	/** pc and instruction word of each entry */
+	private long[] isns;
+	private int mask;
+	/** total entries added */
+	private long count;
+	private int start;
+	private int end = -1;
+	
+	public Trace () {
+		setSize(1 << 20);
+	}
+	
+	/** set the buffer size (rounded up to a power of two) and discard the contents */
+	public void setSize (final int size) {
+		final int s = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+		cycles = null;
+		isns = null;
+		mask = s - 1;
+		count = 0;
+	}
+	
+	/** only trace addresses from start to end inclusive (unsigned) */
+	public void setRange (final int start, final int end) {
+		this.start = start;
+		this.end = end;
+	}
+	
+	/** only trace the given symbol */
+	public void setSymbol (final Symbols symbols, final String name) {
+		final int a = symbols.getAddr(name);
+		setRange(a, symbols.getEnd(name) - 1);
+	}
+	
+	/** trace all addresses */
+	public void clearRange () {
+		setRange(0, -1);
+	}
+	
+	/** add entry if in range */
+	public void add (final long cycle, final int pc, final int isn) {
+		if (Integer.compareUnsigned(pc, start) >= 0 && Integer.compareUnsigned(pc, end) <= 0) {
+			if (isns == null) {
+				cycles = new long[mask + 1];
+				isns = new long[mask + 1];
+			}
+			final int i = (int) count & mask;
+			cycles[i] = cycle;
+			isns[i] = ((long) pc << 32) | (isn & 0xffff_ffffL);
+			count++;
+		}
+	}
+	
+	/** number of entries in buffer */
+	public int size () {
+		return (int) Math.min(count, mask + 1);
+	}
+	
+	/** total number of entries traced, including overwritten entries */
+	public long getCount () {
+		return count;
+	}
+	
+	public void clear () {
+		count = 0;
+	}
+	
+	/** write the buffered entries, oldest first */
+	public void write (final DataOutput out) throws IOException {
+		final int size = size();
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(size);
+		for (long n = count - size; n < count; n++) {
+			final int i = (int) n & mask;
+			out.writeLong(cycles[i]);
+			out.writeLong(isns[i]);
+		}
+	}
+	
+	@Override
+	public String toString () {
+		return String.format("Trace[count=%d size=%d range=%x-%x]", count, size(), start, end);
+	}
+}
@@ -17,6 +17,7 @@ import javax.swing.Timer;
 import javax.swing.border.*;
 import javax.swing.text.*;
 
+import sys.malta.MaltaMain;
 import sys.mips.Cpu;
 import sys.mips.CpuConstants;
 import sys.mips.CpuExceptionParams;
@@ -214,6 +215,8 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 			int[] top = new int[1];
 			cpu = CpuUtil.loadElf(chan, memsize, top);
 			CpuUtil.setMainArgs(cpu, top[0] + 0x100000, args, env);
+			// e.g. -Dsysmips.com2=tcp:4444, see UartBackend.open
+			MaltaMain.attachBackends(cpu, System.getProperty("sysmips.com1"), System.getProperty("sysmips.com2"));
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -361,6 +364,7 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 	private void updateCycle () {
 		if (cpu != null) {
 			cycleLabel.setText(NumberFormat.getInstance().format(cpu.getCycle()));
+			memoryPanel.refresh();
 		}
 	}
 
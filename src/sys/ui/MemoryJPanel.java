@@ -17,6 +17,9 @@ public class MemoryJPanel extends JPanel {
 	private final JCheckBox disasmCheckBox = new JCheckBox("Disasm");
 	
 	private Cpu cpu;
+	/** the ram on display at the last update, 64 rows of at most 16 bytes */
+	private final int[] shown = new int[256];
+	private int shownAddr;
 	
 	public MemoryJPanel () {
 		super(new BorderLayout());
@@ -52,6 +55,22 @@ public class MemoryJPanel extends JPanel {
 		this.cpu = cpu;
 		update();
 	}
+	
+	/**
+	 * redraw if the ram on display has changed since the last update. this
+	 * compares the words itself rather than taking the dirty pages of memory,
+	 * which would hide them from any other user.
+	 */
+	public void refresh () {
+		if (cpu != null) {
+			for (int n = 0; n < shown.length; n++) {
+				if (cpu.getMemory().loadWordKernel(shownAddr + n * 4) != shown[n]) {
+					update();
+					return;
+				}
+			}
+		}
+	}
 
 	private void update () {
 		try {
@@ -59,6 +78,12 @@ public class MemoryJPanel extends JPanel {
 			addrField.setText(Integer.toHexString(a));
 			addrField.setBackground(Color.white);
 			model.update(cpu, a, disasmCheckBox.isSelected());
+			if (cpu != null) {
+				shownAddr = a;
+				for (int n = 0; n < shown.length; n++) {
+					shown[n] = cpu.getMemory().loadWordKernel(a + n * 4);
+				}
+			}
 		} catch (NumberFormatException e) {
 			System.out.println(e);
 			addrField.setBackground(Color.yellow);
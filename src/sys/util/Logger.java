@@ -12,6 +12,11 @@ public class Logger {
 		this.name = name;
 	}
 	
+	/** true if messages at this level are logged, so callers can avoid building them */
+	public boolean isLoggable (int level) {
+		return level >= rootLevel;
+	}
+	
 	public void println (String msg) {
 		println(1, msg);
 	}
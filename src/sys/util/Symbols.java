@@ -71,6 +71,18 @@ public final class Symbols {
 		return reverseMap.get(name).intValue();
 	}
 	
+	/** get address after end of symbol (the size or the next symbol, whichever is first) */
+	public int getEnd (final String name) {
+		final Long key = reverseMap.get(name);
+		final Symbol symbol = map.get(key);
+		final Long next = map.higherKey(key);
+		long end = key.longValue() + (symbol.size & 0xffff_ffffL);
+		if (next != null) {
+			end = Math.min(end, next.longValue());
+		}
+		return (int) Math.min(end, 0xffff_ffffL);
+	}
+	
 	public void put (final int addr, final String name) {
 		put(addr, name, Integer.MAX_VALUE);
 	}